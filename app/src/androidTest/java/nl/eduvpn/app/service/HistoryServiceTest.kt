@@ -58,12 +58,9 @@ class HistoryServiceTest {
         if (clearHistory) {
             preferencesService.clearPreferences()
         } else {
-            // By doing a new commit, we make sure that all other pending transactions are being taken care of
-            preferencesService.getSharedPreferences()
-                .edit()
-                .putInt("DUMMY_KEY", Random().nextInt())
-                .commit()
+            // By flushing, we make sure that all other pending transactions are being taken care of
+            preferencesService.flush()
         }
-        _historyService = HistoryService(BackendService(context, serializerService, preferencesService))
+        _historyService = HistoryService(BackendService(context, serializerService, preferencesService, ConnectionTracer(context, serializerService)))
     }
 }
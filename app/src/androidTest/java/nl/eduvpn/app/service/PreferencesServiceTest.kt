@@ -21,6 +21,7 @@ import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.filters.LargeTest
 import nl.eduvpn.app.entity.*
+import org.eduvpn.common.Protocol
 import org.junit.Assert
 import org.junit.Before
 import org.junit.Test
@@ -73,4 +74,52 @@ class PreferencesServiceTest {
             retrievedInstance.authenticationUrlTemplate
         )
     }
+
+    @Test
+    fun testWritesArePersisted() {
+        _preferencesService.setCurrentProtocol(Protocol.WireGuard.nativeValue)
+        _preferencesService.setToken("https://example.com/", "token")
+        _preferencesService.setToken("https://example.org/", "other_token")
+        _preferencesService.setToken("https://example.org/", null)
+        // Read back from memory, before anything is persisted
+        Assert.assertEquals(Protocol.WireGuard.nativeValue, _preferencesService.getCurrentProtocol())
+        Assert.assertEquals("token", _preferencesService.getToken("https://example.com/"))
+        Assert.assertNull(_preferencesService.getToken("https://example.org/"))
+        _preferencesService.flush()
+        // A new instance has to load the same values from the disk
+        val reloadedService = PreferencesService(
+            ApplicationProvider.getApplicationContext(),
+            SerializerService()
+        )
+        Assert.assertEquals(Protocol.WireGuard.nativeValue, reloadedService.getCurrentProtocol())
+        Assert.assertEquals("token", reloadedService.getToken("https://example.com/"))
+        Assert.assertNull(reloadedService.getToken("https://example.org/"))
+    }
+
+    @Test
+    fun testCurrentInstanceIsReloaded() {
+        val instance = Instance(
+            "http://example.com",
+            TranslatableString("Example"),
+            TranslatableString("konijn"),
+            "http://example.com/image.jpg",
+            AuthorizationType.Distributed,
+            "HU",
+            true,
+            "https://example.com/template",
+            ArrayList()
+        )
+        _preferencesService.setCurrentInstance(instance)
+        // Saving an equal instance again should keep the saved value
+        _preferencesService.setCurrentInstance(instance.copy())
+        Assert.assertEquals(instance, _preferencesService.getCurrentInstance())
+        _preferencesService.flush()
+        val reloadedService = PreferencesService(
+            ApplicationProvider.getApplicationContext(),
+            SerializerService()
+        )
+        Assert.assertEquals(instance, reloadedService.getCurrentInstance())
+        _preferencesService.setCurrentInstance(null)
+        Assert.assertNull(_preferencesService.getCurrentInstance())
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import nl.eduvpn.app.entity.SessionRecord
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.RandomAccessFile
+
+/**
+ * Tests for the session log.
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class SessionLogTest {
+
+    private lateinit var directory: File
+
+    @Before
+    fun before() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        directory = File(context.filesDir, "session_log_test")
+        directory.deleteRecursively()
+        directory.mkdirs()
+    }
+
+    @After
+    fun after() {
+        directory.deleteRecursively()
+    }
+
+    private fun record(index: Int, server: String = "https://server$index.example.com/"): SessionRecord {
+        return SessionRecord(
+            startedAt = 1_700_000_000_000L + index,
+            durationMillis = index * 1000L,
+            bytesIn = index * 100L,
+            bytesOut = index * 10L,
+            protocol = 1,
+            outcome = SessionRecord.OUTCOME_DISCONNECTED,
+            failOver = SessionRecord.FAIL_OVER_NOT_STARTED,
+            server = server
+        )
+    }
+
+    @Test
+    fun testSessionsAreReadNewestFirst() {
+        val log = SessionLog(directory)
+        repeat(3) { log.append(record(it)) }
+        val reader = SessionLog(directory).openReader()
+        Assert.assertEquals(3, reader.size)
+        Assert.assertEquals(record(2), reader.get(0))
+        Assert.assertEquals(record(0), reader.get(2))
+    }
+
+    @Test
+    fun testLongServerNameIsCutOff() {
+        val log = SessionLog(directory)
+        log.append(record(0, server = "é".repeat(100)))
+        val server = log.openReader().get(0).server
+        Assert.assertEquals("é".repeat((SessionLog.MAX_SERVER_BYTES - 1) / 2), server)
+    }
+
+    @Test
+    fun testLogIsRotated() {
+        val log = SessionLog(directory)
+        val count = 4000
+        repeat(count) { log.append(record(it)) }
+        val reader = log.openReader()
+        // The oldest sessions are dropped, the newest ones are kept in order
+        Assert.assertTrue(reader.size in 1 until count)
+        Assert.assertEquals(record(count - 1), reader.get(0))
+        Assert.assertEquals(record(count - reader.size), reader.get(reader.size - 1))
+    }
+
+    @Test
+    fun testIncompleteRecordIsDropped() {
+        val log = SessionLog(directory)
+        log.append(record(0))
+        log.append(record(1))
+        // Simulate a crash halfway through writing the last record
+        val file = File(directory, "session_log.bin")
+        RandomAccessFile(file, "rw").use { it.setLength(file.length() - 3) }
+        Assert.assertEquals(1, log.openReader().size)
+        log.append(record(2))
+        val reader = log.openReader()
+        Assert.assertEquals(2, reader.size)
+        Assert.assertEquals(record(2), reader.get(0))
+        Assert.assertEquals(record(0), reader.get(1))
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import androidx.security.crypto.EncryptedSharedPreferences
+import androidx.security.crypto.MasterKey
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+
+/**
+ * Compares the sealed blob settings store with the EncryptedSharedPreferences store.
+ * The results are written to logcat with the tag of this class.
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class SettingsStoreBenchmarkTest {
+
+    companion object {
+        private val TAG = SettingsStoreBenchmarkTest::class.java.simpleName
+
+        private const val PREFERENCES_NAME = "benchmark_encrypted_preferences"
+        private const val BLOB_FILE_NAME = "benchmark_sealed_settings.bin"
+        private const val KEYSET_NAME = "benchmark_sealed_settings_keyset"
+
+        private const val TOKEN_COUNT = 20
+        private const val ITERATIONS = 20
+    }
+
+    private lateinit var context: Context
+
+    @Before
+    fun before() {
+        context = ApplicationProvider.getApplicationContext()
+        cleanUp()
+    }
+
+    @After
+    fun cleanUp() {
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit().clear().commit()
+        File(context.filesDir, BLOB_FILE_NAME).delete()
+        // Otherwise the next run would reuse the keyset of this one
+        SealedBlobStore.deleteKeyset(context, KEYSET_NAME)
+    }
+
+    private fun openEncryptedStore(): SettingsStore {
+        val masterKey = MasterKey.Builder(context)
+            .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
+            .build()
+        return EncryptedPreferencesStore(
+            EncryptedSharedPreferences.create(
+                context,
+                PREFERENCES_NAME,
+                masterKey,
+                EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
+                EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
+            )
+        )
+    }
+
+    private fun openSealedStore(): SettingsStore {
+        return SealedBlobStore(
+            File(context.filesDir, BLOB_FILE_NAME),
+            SealedBlobStore.createAead(context, KEYSET_NAME)
+        )
+    }
+
+    private fun testValues(): Map<String, Any> {
+        val values = HashMap<String, Any>()
+        values["vpn_protocol"] = 1
+        values["instance"] = "{\"base_url\":\"https://example.com/\",\"display_name\":{\"en\":\"Example\"}}"
+        for (i in 0 until TOKEN_COUNT) {
+            values["server_token_https://server$i.example.com/"] = "token".repeat(100) + i
+        }
+        return values
+    }
+
+    private inline fun measure(name: String, block: () -> Unit): Long {
+        val start = SystemClock.elapsedRealtimeNanos()
+        repeat(ITERATIONS) { block() }
+        val averageMicros = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS / 1000
+        Log.i(TAG, "$name: $averageMicros us on average")
+        return averageMicros
+    }
+
+    private fun benchmark(name: String, openStore: () -> SettingsStore) {
+        val values = testValues()
+        openStore().write(values)
+        measure("$name startup load") {
+            Assert.assertEquals(values.size, openStore().readAll().size)
+        }
+        val store = openStore()
+        measure("$name read") {
+            Assert.assertEquals(values.size, store.readAll().size)
+        }
+        measure("$name single write") {
+            store.write(mapOf("vpn_protocol" to 2))
+        }
+        measure("$name batched write") {
+            store.write(values)
+        }
+    }
+
+    @Test
+    fun benchmarkEncryptedPreferences() {
+        benchmark("EncryptedSharedPreferences", ::openEncryptedStore)
+    }
+
+    @Test
+    fun benchmarkSealedBlob() {
+        benchmark("Sealed blob", ::openSealedStore)
+    }
+
+    @Test
+    fun testSealedBlobRoundTrip() {
+        val values = testValues()
+        openSealedStore().write(values)
+        val store = openSealedStore()
+        Assert.assertEquals(values, store.readAll())
+        store.write(mapOf("vpn_protocol" to null, "new_key" to true))
+        val reloaded = openSealedStore().readAll()
+        Assert.assertFalse(reloaded.containsKey("vpn_protocol"))
+        Assert.assertEquals(true, reloaded["new_key"])
+        Assert.assertEquals(values.size, reloaded.size)
+    }
+}
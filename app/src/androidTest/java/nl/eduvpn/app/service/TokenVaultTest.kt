@@ -0,0 +1,123 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import com.google.crypto.tink.Aead
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.RandomAccessFile
+
+/**
+ * Tests for the token vault.
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class TokenVaultTest {
+
+    companion object {
+        private const val JOURNAL_FILE_NAME = "test_tokens.journal"
+        private const val KEYSET_NAME = "test_tokens_keyset"
+    }
+
+    private lateinit var context: Context
+    private lateinit var file: File
+    private lateinit var aead: Aead
+
+    @Before
+    fun before() {
+        context = ApplicationProvider.getApplicationContext()
+        SealedBlobStore.deleteKeyset(context, KEYSET_NAME)
+        file = File(context.filesDir, JOURNAL_FILE_NAME)
+        file.delete()
+        aead = SealedBlobStore.createAead(context, KEYSET_NAME)
+    }
+
+    @After
+    fun after() {
+        file.delete()
+        SealedBlobStore.deleteKeyset(context, KEYSET_NAME)
+    }
+
+    @Test
+    fun testBatchedUpdatesAreReloaded() {
+        val vault = TokenVault(file, aead)
+        vault.update(mapOf("https://a.example.com/" to "a", "https://b.example.com/" to "b"))
+        vault.update(mapOf("https://a.example.com/" to null, "https://c.example.com/" to "c"))
+        val reloaded = TokenVault(file, aead)
+        Assert.assertNull(reloaded.get("https://a.example.com/"))
+        Assert.assertEquals("b", reloaded.get("https://b.example.com/"))
+        Assert.assertEquals("c", reloaded.get("https://c.example.com/"))
+        reloaded.clearAll()
+        Assert.assertTrue(TokenVault(file, aead).serverIds().isEmpty())
+    }
+
+    @Test
+    fun testJournalIsCompacted() {
+        val vault = TokenVault(file, aead)
+        vault.update(mapOf("https://example.com/" to "token"))
+        val initialSize = file.length()
+        repeat(100) { i ->
+            vault.update(mapOf("https://example.com/" to "token$i"))
+        }
+        // Without compaction, the journal would hold a hundred records
+        Assert.assertTrue(file.length() < 40 * initialSize)
+        Assert.assertEquals("token99", TokenVault(file, aead).get("https://example.com/"))
+    }
+
+    @Test
+    fun testIncompleteRecordIsDropped() {
+        val vault = TokenVault(file, aead)
+        vault.update(mapOf("https://example.com/" to "first"))
+        val validLength = file.length()
+        vault.update(mapOf("https://example.com/" to "second"))
+        // Simulate a crash halfway through writing the last record
+        RandomAccessFile(file, "rw").use { it.setLength(file.length() - 3) }
+        val reloaded = TokenVault(file, aead)
+        Assert.assertEquals("first", reloaded.get("https://example.com/"))
+        Assert.assertEquals(validLength, file.length())
+        // New records can be appended after the recovered journal
+        reloaded.update(mapOf("https://example.com/" to "third"))
+        Assert.assertEquals("third", TokenVault(file, aead).get("https://example.com/"))
+    }
+
+    @Test
+    fun testUnreadableRecordIsSkipped() {
+        val vault = TokenVault(file, aead)
+        vault.update(mapOf("https://a.example.com/" to "a"))
+        vault.update(mapOf("https://b.example.com/" to "b"))
+        val journalLength = file.length()
+        // Flip a bit in the sealed data of the last record, which is still complete
+        RandomAccessFile(file, "rw").use {
+            it.seek(journalLength - 1)
+            val last = it.read()
+            it.seek(journalLength - 1)
+            it.write(last xor 1)
+        }
+        val reloaded = TokenVault(file, aead)
+        Assert.assertEquals("a", reloaded.get("https://a.example.com/"))
+        Assert.assertNull(reloaded.get("https://b.example.com/"))
+        Assert.assertEquals(journalLength, file.length())
+    }
+}
@@ -17,11 +17,19 @@
 
 package nl.eduvpn.app;
 
+import android.app.ActivityManager;
+import android.app.Application;
 import android.content.Context;
+import android.os.Build;
+import android.os.Process;
 import android.os.StrictMode;
 
+import java.util.List;
+
 import de.blinkt.openvpn.core.ICSOpenVPNApplication;
 import nl.eduvpn.app.inject.EduVPNComponent;
+import nl.eduvpn.app.utils.LogoLoader;
+import nl.eduvpn.app.utils.StartupTimings;
 
 /**
  * Application object which keeps track of the app lifecycle.
@@ -34,15 +42,44 @@ public class EduVPNApplication extends ICSOpenVPNApplication {
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupTimings.start();
         // Set up the injector
         _component = EduVPNComponent.Initializer.init(this);
+        // Creating the preferences service starts opening the secure store in the background,
+        // so it is most likely ready by the time the first activity needs it. Not in the OpenVPN
+        // process, which must not open and write the stores of the main process.
+        if (isMainProcess()) {
+            _component.preferencesService();
+        }
+        // Set up the image loader with the caches for the logos
+        LogoLoader.init(this);
 
         // The base class sets a strict VM policy for debug builds, which do not work well with OkHttp
         // (see this issue: https://github.com/square/okhttp/issues/3537)
         // For now, the best solution seems to be disabling strict mode
         StrictMode.VmPolicy policy = new StrictMode.VmPolicy.Builder().build();
         StrictMode.setVmPolicy(policy);
+        StartupTimings.mark(StartupTimings.APPLICATION_CREATED);
+    }
 
+    private boolean isMainProcess() {
+        String processName = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            processName = Application.getProcessName();
+        } else {
+            ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+            List<ActivityManager.RunningAppProcessInfo> processes = activityManager.getRunningAppProcesses();
+            if (processes != null) {
+                int pid = Process.myPid();
+                for (ActivityManager.RunningAppProcessInfo process : processes) {
+                    if (process.pid == pid) {
+                        processName = process.processName;
+                        break;
+                    }
+                }
+            }
+        }
+        return getPackageName().equals(processName);
     }
 
     public EduVPNComponent component() {
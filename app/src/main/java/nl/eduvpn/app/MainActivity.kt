@@ -24,6 +24,7 @@ import android.os.Build
 import android.os.Bundle
 import android.view.MenuItem
 import android.view.View
+import android.view.ViewTreeObserver
 import android.widget.Toast
 import androidx.activity.viewModels
 import androidx.appcompat.app.AlertDialog
@@ -42,10 +43,11 @@ import nl.eduvpn.app.fragment.ConnectionStatusFragment
 import nl.eduvpn.app.fragment.OrganizationSelectionFragment
 import nl.eduvpn.app.fragment.ProfileSelectionFragment
 import nl.eduvpn.app.fragment.ServerSelectionFragment
-import nl.eduvpn.app.service.EduVPNOpenVPNService
+import nl.eduvpn.app.service.OpenVPNBindingManager
 import nl.eduvpn.app.service.VPNService
 import nl.eduvpn.app.service.WireGuardService
 import nl.eduvpn.app.utils.ErrorDialog.show
+import nl.eduvpn.app.utils.StartupTimings
 import nl.eduvpn.app.utils.countryCodeToCountryNameAndFlag
 import nl.eduvpn.app.viewmodel.MainViewModel
 import nl.eduvpn.app.viewmodel.ViewModelFactory
@@ -64,7 +66,7 @@ class MainActivity : BaseActivity<ActivityMainBinding>() {
     protected lateinit var vpnService: Optional<VPNService>
 
     @Inject
-    protected lateinit var eduVPNOpenVPNService: EduVPNOpenVPNService
+    protected lateinit var openVPNBindingManager: OpenVPNBindingManager
 
     @Inject
     protected lateinit var wireGuardService: WireGuardService
@@ -134,7 +136,7 @@ class MainActivity : BaseActivity<ActivityMainBinding>() {
                 }
             }
         }
-        eduVPNOpenVPNService.onCreate(this)
+        openVPNBindingManager.preWarmIfLikelyNeeded()
         if (savedInstanceState == null) {
             // If there's an ongoing VPN connection, open the status screen.
             if (vpnService.isPresent && vpnService.get()
@@ -158,6 +160,14 @@ class MainActivity : BaseActivity<ActivityMainBinding>() {
         }
         createCertExpiryNotificationChannel()
         createVPNConnectionNotificationChannel()
+        StartupTimings.mark(StartupTimings.MAIN_ACTIVITY_CREATED)
+        binding.root.viewTreeObserver.addOnPreDrawListener(object : ViewTreeObserver.OnPreDrawListener {
+            override fun onPreDraw(): Boolean {
+                binding.root.viewTreeObserver.removeOnPreDrawListener(this)
+                StartupTimings.mark(StartupTimings.FIRST_FRAME)
+                return true
+            }
+        })
     }
 
     private fun showCountriesDialog(
@@ -256,11 +266,6 @@ class MainActivity : BaseActivity<ActivityMainBinding>() {
         }
     }
 
-    override fun onDestroy() {
-        super.onDestroy()
-        eduVPNOpenVPNService.onDestroy(this)
-    }
-
     fun openFragment(fragment: Fragment?, openOnTop: Boolean) {
         if (openOnTop) {
             supportFragmentManager.beginTransaction()
@@ -0,0 +1,143 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app
+
+import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.view.MenuItem
+import androidx.core.view.isVisible
+import androidx.lifecycle.lifecycleScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import nl.eduvpn.app.base.BaseActivity
+import nl.eduvpn.app.databinding.ActivityMetricsBinding
+import nl.eduvpn.app.entity.ConnectTrace
+import nl.eduvpn.app.service.ConnectionTracer
+import nl.eduvpn.app.utils.MetricsRegistry
+import java.util.Locale
+import javax.inject.Inject
+
+/**
+ * Debug screen which shows the contents of the metrics registry, refreshed every second, and the
+ * breakdown of the last connection attempts.
+ */
+class MetricsActivity : BaseActivity<ActivityMetricsBinding>() {
+
+    companion object {
+        private const val REFRESH_INTERVAL_MS = 1000L
+    }
+
+    override val layout = R.layout.activity_metrics
+
+    @Inject
+    protected lateinit var connectionTracer: ConnectionTracer
+
+    private var connectTraces: List<ConnectTrace> = emptyList()
+
+    private val handler = Handler(Looper.getMainLooper())
+
+    private val refreshRunnable = object : Runnable {
+        override fun run() {
+            binding.metricsContents.text = formatSnapshot(MetricsRegistry.snapshot()) + formatConnectTraces(connectTraces)
+            handler.postDelayed(this, REFRESH_INTERVAL_MS)
+        }
+    }
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        EduVPNApplication.get(this).component().inject(this)
+        setSupportActionBar(binding.toolbar.toolbar)
+        supportActionBar?.setDisplayHomeAsUpEnabled(true)
+        binding.toolbar.settingsButton.isVisible = false
+    }
+
+    override fun onOptionsItemSelected(item: MenuItem): Boolean {
+        return if (item.itemId == android.R.id.home) {
+            onBackPressedDispatcher.onBackPressed()
+            true
+        } else {
+            super.onOptionsItemSelected(item)
+        }
+    }
+
+    override fun onResume() {
+        super.onResume()
+        lifecycleScope.launch {
+            // Shown by the next refresh
+            connectTraces = withContext(Dispatchers.IO) { connectionTracer.storedTraces() }.asReversed()
+        }
+        refreshRunnable.run()
+    }
+
+    override fun onPause() {
+        handler.removeCallbacks(refreshRunnable)
+        super.onPause()
+    }
+
+    private fun formatSnapshot(snapshot: MetricsRegistry.Snapshot): String {
+        val builder = StringBuilder()
+        snapshot.counters.forEach { (name, value) ->
+            builder.append(name).append(" = ").append(value).append('\n')
+        }
+        snapshot.gauges.forEach { (name, value) ->
+            builder.append(name).append(" = ").append(value).append('\n')
+        }
+        snapshot.histograms.forEach { histogram ->
+            builder.append(histogram.name).append('\n')
+            builder.append(
+                String.format(
+                    Locale.ROOT,
+                    "  n=%d mean=%s p50=%s p95=%s p99=%s max=%s\n",
+                    histogram.count,
+                    formatMicros(histogram.mean),
+                    formatMicros(histogram.percentile(0.5)),
+                    formatMicros(histogram.percentile(0.95)),
+                    formatMicros(histogram.percentile(0.99)),
+                    formatMicros(histogram.max)
+                )
+            )
+        }
+        return builder.toString()
+    }
+
+    private fun formatConnectTraces(traces: List<ConnectTrace>): String {
+        val builder = StringBuilder()
+        traces.forEach { trace ->
+            builder.append('\n')
+                .append("connect ").append(trace.outcome)
+                .append(" in ").append(trace.totalMillis).append("ms")
+            trace.serverId?.let { builder.append(" (").append(it).append(')') }
+            builder.append('\n')
+            trace.spans.forEach { span ->
+                builder.append("  +").append(span.offsetMillis).append("ms ")
+                    .append(span.name).append(' ')
+                    .append(span.durationMillis).append("ms\n")
+            }
+        }
+        return builder.toString()
+    }
+
+    private fun formatMicros(micros: Long): String {
+        return if (micros < 1000) {
+            "${micros}us"
+        } else {
+            String.format(Locale.ROOT, "%.1fms", micros / 1000.0)
+        }
+    }
+}
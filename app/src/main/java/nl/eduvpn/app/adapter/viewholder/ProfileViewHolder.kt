@@ -18,14 +18,13 @@
 package nl.eduvpn.app.adapter.viewholder
 
 
-import android.text.TextUtils
 import androidx.recyclerview.widget.RecyclerView
-import com.squareup.picasso.Picasso
 import nl.eduvpn.app.R
 import nl.eduvpn.app.databinding.ListItemProfileBinding
 import nl.eduvpn.app.entity.Instance
 import nl.eduvpn.app.entity.Profile
 import nl.eduvpn.app.utils.FormattingUtils
+import nl.eduvpn.app.utils.LogoLoader
 
 /**
  * View holder for the provider instance list.
@@ -36,13 +35,6 @@ class ProfileViewHolder(private val binding: ListItemProfileBinding) : RecyclerV
     fun bind(instance: Instance, profile: Profile) {
         binding.profileName.text = profile.displayName.bestTranslation
         binding.profileProvider.text = FormattingUtils.formatDisplayName(instance)
-        if (!TextUtils.isEmpty(instance.logoUri)) {
-            Picasso.get()
-                    .load(instance.logoUri)
-                    .fit()
-                    .into(binding.profileIcon)
-        } else {
-            binding.profileIcon.setImageResource(R.drawable.ic_vpn_profile)
-        }
+        LogoLoader.load(instance.logoUri, binding.profileIcon, R.drawable.ic_vpn_profile)
     }
 }
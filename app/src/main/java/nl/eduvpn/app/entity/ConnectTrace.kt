@@ -0,0 +1,58 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.entity
+
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+
+/**
+ * The breakdown of one connection attempt, from the tap on a server until the tunnel is up.
+ */
+@Serializable
+data class ConnectTrace(
+    @SerialName("server_id")
+    val serverId: String? = null,
+    @SerialName("started_at")
+    val startedAt: Long,
+    @SerialName("outcome")
+    val outcome: String,
+    @SerialName("total_ms")
+    val totalMillis: Long,
+    @SerialName("spans")
+    val spans: List<ConnectSpan> = emptyList(),
+)
+
+/**
+ * One phase of a connection attempt.
+ *
+ * @param offsetMillis When the phase started, relative to the start of the attempt.
+ */
+@Serializable
+data class ConnectSpan(
+    @SerialName("name")
+    val name: String,
+    @SerialName("offset_ms")
+    val offsetMillis: Long,
+    @SerialName("duration_ms")
+    val durationMillis: Long,
+)
+
+@Serializable
+data class ConnectTraceList(
+    @SerialName("traces")
+    val traces: List<ConnectTrace> = emptyList(),
+)
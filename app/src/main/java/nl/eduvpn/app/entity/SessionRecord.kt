@@ -0,0 +1,49 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.entity
+
+/**
+ * A VPN session which has ended.
+ *
+ * @param startedAt      When the session was connected, in milliseconds since the epoch.
+ * @param durationMillis How long the session was connected.
+ * @param bytesIn        The number of bytes received, or -1 if unknown.
+ * @param bytesOut       The number of bytes sent, or -1 if unknown.
+ * @param protocol       The native value of the protocol.
+ * @param server         The server connected to. Long names are cut off.
+ */
+data class SessionRecord(
+    val startedAt: Long,
+    val durationMillis: Long,
+    val bytesIn: Long,
+    val bytesOut: Long,
+    val protocol: Int,
+    val outcome: Int,
+    val failOver: Int,
+    val server: String
+) {
+    companion object {
+        const val OUTCOME_DISCONNECTED = 0
+        const val OUTCOME_FAILED = 1
+        // The end of the session was missed, so it is not known if it failed
+        const val OUTCOME_UNKNOWN = 2
+
+        const val FAIL_OVER_NOT_STARTED = 0
+        const val FAIL_OVER_NOT_NEEDED = 1
+        const val FAIL_OVER_NEEDED = 2
+    }
+}
@@ -25,13 +25,13 @@ import androidx.appcompat.app.AlertDialog
 import androidx.core.view.postDelayed
 import androidx.fragment.app.activityViewModels
 import androidx.fragment.app.viewModels
+import androidx.lifecycle.MediatorLiveData
 import androidx.lifecycle.Observer
 import androidx.lifecycle.asLiveData
 import androidx.lifecycle.map
 import androidx.lifecycle.viewModelScope
 import com.google.android.material.snackbar.Snackbar
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import nl.eduvpn.app.Constants
@@ -42,6 +42,7 @@ import nl.eduvpn.app.base.BaseFragment
 import nl.eduvpn.app.databinding.FragmentConnectionStatusBinding
 import nl.eduvpn.app.entity.Profile
 import nl.eduvpn.app.fragment.ServerSelectionFragment.Companion.newInstance
+import nl.eduvpn.app.livedata.ConnectionTimeLiveData
 import nl.eduvpn.app.service.VPNConnectionService
 import nl.eduvpn.app.service.VPNService.VPNStatus
 import nl.eduvpn.app.utils.ErrorDialog
@@ -74,30 +75,45 @@ class ConnectionStatusFragment : BaseFragment<FragmentConnectionStatusBinding>()
         binding.viewModel = viewModel
         binding.isTcp = viewModel.isCurrentProtocolUsingTcp()
         binding.failoverNeeded = mainViewModel.failoverResult.value ?: false
-        binding.secondsConnected = viewModel.connectionTimeLiveData.map { secondsConnected ->
-            val context = this@ConnectionStatusFragment.context ?: return@map null
-            if (secondsConnected < 0) {
-                FormattingUtils.formatDurationSeconds(context, null)
-            } else {
-                FormattingUtils.formatDurationSeconds(context, secondsConnected)
+        // The duration is derived from the moment of connecting at every tick
+        val connectionTime = viewModel.connectionTimeLiveData
+        binding.secondsConnected = MediatorLiveData<String>().apply {
+            val update = Observer<Any> {
+                val context = this@ConnectionStatusFragment.context ?: return@Observer
+                val connectedSince = connectionTime.value ?: ConnectionTimeLiveData.NOT_CONNECTED
+                value = if (connectedSince == ConnectionTimeLiveData.NOT_CONNECTED) {
+                    FormattingUtils.formatDurationSeconds(context, null)
+                } else {
+                    FormattingUtils.formatDurationSeconds(context, ConnectionTimeLiveData.secondsConnected(connectedSince))
+                }
             }
+            addSource(connectionTime, update)
+            addSource(viewModel.timer, update)
         }
-        binding.bytesDownloaded = viewModel.byteCountFlow.map { bc ->
+        // Collected once, and shared by all the views which show the traffic
+        val trafficLiveData = viewModel.trafficFlow.asLiveData()
+        binding.bytesDownloaded = trafficLiveData.map { (bc, throughput) ->
             val context = this@ConnectionStatusFragment.context ?: return@map null
-            FormattingUtils.formatBytesTraffic(
+            FormattingUtils.formatBytesTrafficWithRate(
                 context,
-                bc?.bytesIn
+                bc?.bytesIn,
+                throughput.smoothedDownloadRate
             )
-        }.asLiveData()
-        binding.bytesUploaded = viewModel.byteCountFlow.map { bc ->
+        }
+        binding.bytesUploaded = trafficLiveData.map { (bc, throughput) ->
             val context = this@ConnectionStatusFragment.context ?: return@map null
-            FormattingUtils.formatBytesTraffic(
+            FormattingUtils.formatBytesTrafficWithRate(
                 context,
-                bc?.bytesOut
+                bc?.bytesOut,
+                throughput.smoothedUploadRate
             )
-        }.asLiveData()
+        }
+        trafficLiveData.observe(viewLifecycleOwner) {
+            binding.trafficSparkline.update(viewModel.trafficHistory)
+        }
         binding.protocolName = getProtocolName(viewModel.protocol)
         binding.ips = viewModel.ipFLow.asLiveData()
+        binding.peerWarning = viewModel.peerWarning.asLiveData()
         binding.connectionSwitch.setOnCheckedChangeListener { _, isChecked ->
             if (isAutomaticCheckChange) {
                 return@setOnCheckedChangeListener
@@ -208,16 +224,9 @@ class ConnectionStatusFragment : BaseFragment<FragmentConnectionStatusBinding>()
             (activity as? MainActivity)?.setBackNavigationEnabled(isInDisconnectMode)
             backPressedCallback.isEnabled = isInDisconnectMode
         }
-        var updateCertExpiryObserver: Observer<Unit>? = null
-        updateCertExpiryObserver = Observer {
-            if (!viewModel.updateCertExpiry()) {
-                updateCertExpiryObserver?.let { obs -> viewModel.timer.removeObserver(obs) }
-            }
-        }
         mainViewModel.failoverResult.observe(viewLifecycleOwner) {
             binding.failoverNeeded = it
         }
-        viewModel.timer.observe(viewLifecycleOwner, updateCertExpiryObserver)
         viewModel.vpnStatus.observe(viewLifecycleOwner) { status ->
             binding.connectionStatus.setText(VPNConnectionService.vpnStatusToStringID(status))
             when (status) {
@@ -28,6 +28,7 @@ import nl.eduvpn.app.ApiLogsActivity
 import nl.eduvpn.app.BuildConfig
 import nl.eduvpn.app.EduVPNApplication
 import nl.eduvpn.app.LicenseActivity
+import nl.eduvpn.app.MetricsActivity
 import nl.eduvpn.app.OpenVpnLogsActivity
 import nl.eduvpn.app.R
 import nl.eduvpn.app.SettingsActivity
@@ -66,6 +67,12 @@ class SettingsFragment : BaseFragment<FragmentSettingsBinding>() {
             startActivity(intent)
         }
         binding.viewApiLogsContainer.isVisible = viewModel.apiLogFile != null
+        binding.viewMetricsButton.setOnClickListener {
+            val intent = Intent(activity, MetricsActivity::class.java)
+            startActivity(intent)
+        }
+        binding.viewMetricsContainer.isVisible = BuildConfig.DEBUG
+        binding.viewMetricsSeparator.isVisible = BuildConfig.DEBUG
         if (!BuildConfig.API_DISCOVERY_ENABLED) {
             binding.resetDataSeparator.visibility = View.GONE
             binding.resetAppDataContainer.visibility = View.GONE
@@ -19,11 +19,8 @@ package nl.eduvpn.app.inject
 import android.content.Context
 import android.os.Build
 import androidx.lifecycle.LiveData
-import androidx.lifecycle.asFlow
-import androidx.lifecycle.liveData
 import dagger.Module
 import dagger.Provides
-import kotlinx.coroutines.delay
 import nl.eduvpn.app.EduVPNApplication
 import nl.eduvpn.app.livedata.ConnectionTimeLiveData
 import nl.eduvpn.app.livedata.openvpn.IPLiveData
@@ -71,15 +68,26 @@ class ApplicationModule(private val application: EduVPNApplication) {
     fun provideBackendService(
         context: Context,
         serializerService: SerializerService,
-        preferencesService: PreferencesService
+        preferencesService: PreferencesService,
+        connectionTracer: ConnectionTracer
     ) : BackendService {
         return BackendService(
             context,
             serializerService,
-            preferencesService
+            preferencesService,
+            connectionTracer
         )
     }
 
+    @Provides
+    @Singleton
+    fun provideConnectionTracer(
+        context: Context,
+        serializerService: SerializerService
+    ): ConnectionTracer {
+        return ConnectionTracer(context, serializerService)
+    }
+
     @Provides
     @Singleton
     fun providePreferencesService(
@@ -97,29 +105,34 @@ class ApplicationModule(private val application: EduVPNApplication) {
 
     @Provides
     @Singleton
-    @Named("timer")
-    fun provide1SecondTimer(): LiveData<Unit> {
-        return liveData {
-            while (true) {
-                emit(Unit)
-                delay(1000)
-            }
-        }
+    fun provideTicker(): Ticker {
+        return Ticker()
     }
 
     @Provides
+    @Singleton
     @Named("connectionTimeLiveData")
     fun provideConnectionTimeLiveData(
-        vpnService: VPNService,
-        @Named("timer") timer: LiveData<Unit>
+        eduOpenVPNService: EduVPNOpenVPNService,
+        wireGuardService: WireGuardService,
+        preferencesService: PreferencesService
     ): LiveData<Long> {
-        return ConnectionTimeLiveData.create(vpnService, timer)
+        return ConnectionTimeLiveData(listOf(eduOpenVPNService, wireGuardService), preferencesService)
+    }
+
+    @Provides
+    @Singleton
+    fun provideOpenVPNIPLiveData(context: Context): IPLiveData {
+        return IPLiveData(context)
     }
 
     @Provides
     @Singleton
-    fun provideOpenVPNIPLiveData(): IPLiveData {
-        return IPLiveData()
+    fun provideOpenVPNBindingManager(
+        context: Context,
+        preferencesService: PreferencesService
+    ): OpenVPNBindingManager {
+        return OpenVPNBindingManager(context, preferencesService)
     }
 
     @Provides
@@ -127,17 +140,19 @@ class ApplicationModule(private val application: EduVPNApplication) {
     fun provideEduOpenVPNService(
         context: Context,
         ipLiveData: IPLiveData,
+        bindingManager: OpenVPNBindingManager,
+        ticker: Ticker
     ): EduVPNOpenVPNService {
-        return EduVPNOpenVPNService(context, ipLiveData)
+        return EduVPNOpenVPNService(context, ipLiveData, bindingManager, ticker)
     }
 
     @Provides
     @Singleton
     fun provideWireGuardService(
         context: Context,
-        @Named("timer") timer: LiveData<Unit>
+        ticker: Ticker
     ): WireGuardService {
-        return WireGuardService(context, timer.asFlow())
+        return WireGuardService(context, ticker)
     }
 
     @Provides
@@ -174,16 +189,35 @@ class ApplicationModule(private val application: EduVPNApplication) {
         preferencesService: PreferencesService,
         eduVPNOpenVPNService: EduVPNOpenVPNService,
         wireGuardService: WireGuardService,
+        connectionTracer: ConnectionTracer,
+        sessionRecorder: SessionRecorder,
         applicationContext: Context,
     ): VPNConnectionService {
         return VPNConnectionService(
             preferencesService,
             eduVPNOpenVPNService,
             wireGuardService,
+            connectionTracer,
+            sessionRecorder,
             applicationContext,
         )
     }
 
+    @Provides
+    @Singleton
+    fun provideSessionLog(context: Context): SessionLog {
+        return SessionLog(context.filesDir)
+    }
+
+    @Provides
+    @Singleton
+    fun provideSessionRecorder(
+        sessionLog: SessionLog,
+        preferencesService: PreferencesService
+    ): SessionRecorder {
+        return SessionRecorder(sessionLog, preferencesService)
+    }
+
     @Provides
     @Singleton
     fun provideHttpClient(context: Context): OkHttpClient {
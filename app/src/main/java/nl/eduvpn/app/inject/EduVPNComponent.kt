@@ -22,8 +22,10 @@ import nl.eduvpn.app.CertExpiredBroadcastReceiver
 import nl.eduvpn.app.DisconnectVPNBroadcastReceiver
 import nl.eduvpn.app.EduVPNApplication
 import nl.eduvpn.app.MainActivity
+import nl.eduvpn.app.MetricsActivity
 import nl.eduvpn.app.OpenVpnLogsActivity
 import nl.eduvpn.app.fragment.*
+import nl.eduvpn.app.service.PreferencesService
 import javax.inject.Singleton
 
 /**
@@ -45,6 +47,7 @@ interface EduVPNComponent {
     fun inject(mainActivity: MainActivity)
     fun inject(apiLogsActivity: ApiLogsActivity)
     fun inject(apiLogsActivity: OpenVpnLogsActivity)
+    fun inject(metricsActivity: MetricsActivity)
     fun inject(connectionStatusFragment: ConnectionStatusFragment)
     fun inject(homeFragment: ProfileSelectionFragment)
     fun inject(settingsFragment: SettingsFragment)
@@ -52,4 +55,6 @@ interface EduVPNComponent {
     fun inject(addServerFragment: AddServerFragment)
     fun inject(certExpiredBroadcastReceiver: CertExpiredBroadcastReceiver)
     fun inject(disconnectVPNBroadcastReceiver: DisconnectVPNBroadcastReceiver)
+
+    fun preferencesService(): PreferencesService
 }
@@ -1,3 +1,20 @@
 package nl.eduvpn.app.livedata
 
-data class ByteCount(val bytesIn: Long, val bytesOut: Long)
+/**
+ * @param timeMillis The monotonic time at which the counts were sampled.
+ * @param deltaIn    The bytes received since the previous sample, or [UNKNOWN_DELTA] if the backend
+ *                   does not report it. Unlike the difference of the totals, it stays correct when
+ *                   the backend resets its totals.
+ * @param deltaOut   The bytes sent since the previous sample, or [UNKNOWN_DELTA].
+ */
+data class ByteCount @JvmOverloads constructor(
+    val bytesIn: Long,
+    val bytesOut: Long,
+    val timeMillis: Long,
+    val deltaIn: Long = UNKNOWN_DELTA,
+    val deltaOut: Long = UNKNOWN_DELTA
+) {
+    companion object {
+        const val UNKNOWN_DELTA = -1L
+    }
+}
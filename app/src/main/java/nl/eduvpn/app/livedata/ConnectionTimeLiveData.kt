@@ -14,48 +14,84 @@
  *     You should have received a copy of the GNU General Public License
  *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package nl.eduvpn.app.livedata
 
+import android.os.SystemClock
 import androidx.lifecycle.LiveData
-import androidx.lifecycle.MediatorLiveData
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import nl.eduvpn.app.service.PreferencesService
 import nl.eduvpn.app.service.VPNService
 
 /**
- * Amount of seconds connected to the VPN.
+ * The moment the VPN connected, as [SystemClock.elapsedRealtime], or [NOT_CONNECTED].
+ *
+ * The value only changes when connecting or disconnecting. The duration is derived from it with
+ * [secondsConnected] whenever it is shown, so it does not jump when the wall clock is changed.
+ * The moment is saved in the preferences, so it is kept when the process is recreated while the
+ * tunnel stays up.
+ *
+ * There is one instance for the app, which follows all VPN services. It collects their status for
+ * as long as the app runs, so no connected or disconnected events are missed while the app is in the
+ * background.
  */
-object ConnectionTimeLiveData {
-    
-    fun create(
-        vpnStatusLiveData: LiveData<VPNService.VPNStatus>,
-        timer: LiveData<Unit>
-    ): LiveData<Long> {
-        var connectionTime = 0L
+class ConnectionTimeLiveData(
+    vpnServices: List<VPNService>,
+    private val preferencesService: PreferencesService
+) : LiveData<Long>(NOT_CONNECTED) {
 
-        val connectionTimeLiveData = MediatorLiveData<Long>()
+    companion object {
+        const val NOT_CONNECTED = -1L
 
-        val update = {
-            connectionTimeLiveData.value = (System.currentTimeMillis() - connectionTime) / 1000L
+        /**
+         * @param connectedSinceRealtime The value of this live data while connected.
+         * @return The number of seconds connected.
+         */
+        fun secondsConnected(connectedSinceRealtime: Long): Long {
+            return (SystemClock.elapsedRealtime() - connectedSinceRealtime) / 1000L
         }
+    }
 
-        // we do not want to miss connected / disconnected events when the user puts the app in the
-        // background, so observeForever
-        vpnStatusLiveData.observeForever { vpnStatus ->
-            if (vpnStatus == VPNService.VPNStatus.CONNECTED) {
-                connectionTime = System.currentTimeMillis()
-                connectionTimeLiveData.value = 0
-                try {
-                    // the timer will be automatically stopped onPause and will be restarted onResume
-                    connectionTimeLiveData.addSource(timer) { update() }
-                } catch (ex: IllegalArgumentException) {
-                    // timer already added as source
-                }
-            } else if (vpnStatus == VPNService.VPNStatus.DISCONNECTED) {
-                connectionTimeLiveData.removeSource(timer)
-                connectionTimeLiveData.value = -1
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main.immediate)
+    private var connectedService: VPNService? = null
+
+    init {
+        vpnServices.forEach { service ->
+            scope.launch {
+                service.statusFlow.collect { (status) -> onStatusChanged(service, status) }
             }
         }
+    }
 
-        return connectionTimeLiveData
+    private fun onStatusChanged(service: VPNService, status: VPNService.VPNStatus) {
+        when (status) {
+            VPNService.VPNStatus.CONNECTING -> if (connectedService == null) {
+                // A new connection, the saved moment belongs to a previous one
+                preferencesService.setConnectedSinceRealtime(null)
+            }
+            VPNService.VPNStatus.CONNECTED -> if (connectedService !== service) {
+                connectedService = service
+                // Without a saved moment, the connection was just established. Otherwise the process
+                // has been recreated while the tunnel stayed up.
+                value = preferencesService.getConnectedSinceRealtime()
+                    ?: SystemClock.elapsedRealtime().also { preferencesService.setConnectedSinceRealtime(it) }
+            }
+            VPNService.VPNStatus.DISCONNECTED -> if (connectedService === service) {
+                connectedService = null
+                preferencesService.setConnectedSinceRealtime(null)
+                value = NOT_CONNECTED
+            }
+            VPNService.VPNStatus.FAILED -> {
+                // Also when it failed before connecting, so the next connection does not continue this one
+                preferencesService.setConnectedSinceRealtime(null)
+                if (connectedService === service) {
+                    connectedService = null
+                    value = NOT_CONNECTED
+                }
+            }
+            else -> Unit
+        }
     }
 }
@@ -0,0 +1,20 @@
+package nl.eduvpn.app.livedata
+
+/**
+ * Diagnostics of a single WireGuard peer.
+ *
+ * @param publicKey          The public key of the peer, in base64.
+ * @param rxBytes            The bytes received from the peer.
+ * @param txBytes            The bytes sent to the peer.
+ * @param handshakeAgeMillis The time since the last handshake with the peer. Null if there was no handshake yet.
+ * @param handshakeFailing   True if we are sending data, but no handshake has completed for longer than the session keys are valid.
+ * @param stalled            True if we kept sending data, but nothing was received for a while.
+ */
+data class PeerDiagnostics(
+    val publicKey: String,
+    val rxBytes: Long,
+    val txBytes: Long,
+    val handshakeAgeMillis: Long?,
+    val handshakeFailing: Boolean,
+    val stalled: Boolean
+)
@@ -0,0 +1,21 @@
+package nl.eduvpn.app.livedata
+
+/**
+ * Transfer rates of the VPN connection, in bytes per second.
+ *
+ * @param downloadRate         The download rate over the last few samples.
+ * @param uploadRate           The upload rate over the last few samples.
+ * @param smoothedDownloadRate The exponentially weighted moving average of the download rate.
+ * @param smoothedUploadRate   The exponentially weighted moving average of the upload rate.
+ */
+data class Throughput(
+    val downloadRate: Long,
+    val uploadRate: Long,
+    val smoothedDownloadRate: Long,
+    val smoothedUploadRate: Long
+) {
+    companion object {
+        @JvmField
+        val ZERO = Throughput(0, 0, 0, 0)
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.livedata.openvpn
+
+import android.os.SystemClock
+import de.blinkt.openvpn.core.VpnStatus
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
+import nl.eduvpn.app.livedata.ByteCount
+import nl.eduvpn.app.service.Ticker
+import nl.eduvpn.app.utils.MetricsRegistry
+import nl.eduvpn.app.utils.StatisticsPoller
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Passes the byte counts which OpenVPN reports on to the byte count flow.
+ *
+ * OpenVPN calls the listener on its management thread, as often as it reports. The listener only
+ * writes the counts into atomic fields. The collector reads them through a [StatisticsPoller], like
+ * the WireGuard statistics, so the reports in between are coalesced, and reading backs off while there
+ * is no traffic and pauses in doze mode. The deltas which OpenVPN reports are added up until they are read.
+ *
+ * @param isDeviceIdle Returns true if the device is in doze mode.
+ * @param ticker       The ticker at which the counts are read.
+ */
+class ByteCountBridge(
+    private val isDeviceIdle: () -> Boolean,
+    private val ticker: Ticker?
+) {
+
+    // Increased before and after writing the counts, so it is odd while they are being written.
+    private val version = AtomicLong()
+    private val bytesIn = AtomicLong()
+    private val bytesOut = AtomicLong()
+    private val reportedAt = AtomicLong()
+
+    // The sums of all the deltas reported, so a reader can take the deltas since its last read.
+    private val deltaInSum = AtomicLong()
+    private val deltaOutSum = AtomicLong()
+
+    private val byteCountListener = VpnStatus.ByteCountListener { inBytes, outBytes, diffIn, diffOut ->
+        version.incrementAndGet()
+        bytesIn.set(inBytes)
+        bytesOut.set(outBytes)
+        reportedAt.set(SystemClock.elapsedRealtime())
+        deltaInSum.addAndGet(diffIn)
+        deltaOutSum.addAndGet(diffOut)
+        version.incrementAndGet()
+    }
+
+    private val intervalGauge = MetricsRegistry.gauge("openvpn.poll_interval_ms")
+
+    /**
+     * The byte counts, read at the interval of the poller. The same counts, with zero deltas, are returned
+     * again until OpenVPN reports new ones. The listener is only registered while the flow is collected.
+     *
+     * @param isDisconnected Returns true if there is no connection, in which case null is emitted.
+     */
+    fun byteCounts(isDisconnected: () -> Boolean): Flow<ByteCount?> = flow {
+        var publishedVersion = 0L
+        var published: ByteCount? = null
+        // Deltas reported before collecting started belong to no sample. Set after adding the listener.
+        var readDeltaIn = 0L
+        var readDeltaOut = 0L
+        val poller = StatisticsPoller(
+            sample = {
+                if (isDisconnected()) {
+                    readDeltaIn = deltaInSum.get()
+                    readDeltaOut = deltaOutSum.get()
+                    published = null
+                } else if (version.get() != publishedVersion) {
+                    var readVersion: Long
+                    var inBytes: Long
+                    var outBytes: Long
+                    var timeMillis: Long
+                    var deltaIn: Long
+                    var deltaOut: Long
+                    do {
+                        readVersion = version.get()
+                        inBytes = bytesIn.get()
+                        outBytes = bytesOut.get()
+                        timeMillis = reportedAt.get()
+                        deltaIn = deltaInSum.get()
+                        deltaOut = deltaOutSum.get()
+                    } while (readVersion % 2 != 0L || version.get() != readVersion)
+                    publishedVersion = readVersion
+                    published = ByteCount(inBytes, outBytes, timeMillis, deltaIn - readDeltaIn, deltaOut - readDeltaOut)
+                    readDeltaIn = deltaIn
+                    readDeltaOut = deltaOut
+                } else {
+                    // Nothing was reported since the last sample
+                    published = published?.let {
+                        if (it.deltaIn == 0L && it.deltaOut == 0L) it else it.copy(deltaIn = 0, deltaOut = 0)
+                    }
+                }
+                published
+            },
+            isDeviceIdle = isDeviceIdle,
+            intervalGauge = intervalGauge,
+            ticker = ticker
+        )
+        // Adding the listener reports the last known byte counts right away, including the deltas of that
+        // old report, so those are left out of the first sample
+        VpnStatus.addByteCountListener(byteCountListener)
+        readDeltaIn = deltaInSum.get()
+        readDeltaOut = deltaOutSum.get()
+        try {
+            emitAll(poller.samples())
+        } finally {
+            VpnStatus.removeByteCountListener(byteCountListener)
+        }
+    }
+}
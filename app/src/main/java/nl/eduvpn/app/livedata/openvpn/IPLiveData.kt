@@ -17,7 +17,13 @@
 
 package nl.eduvpn.app.livedata.openvpn
 
+import android.content.Context
 import android.content.Intent
+import android.net.ConnectivityManager
+import android.net.LinkProperties
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkRequest
 import androidx.core.util.Pair
 import androidx.lifecycle.LiveData
 import de.blinkt.openvpn.core.ConnectionStatus
@@ -27,17 +33,44 @@ import nl.eduvpn.app.livedata.IPs
 import nl.eduvpn.app.service.EduVPNOpenVPNService
 import nl.eduvpn.app.service.VPNService
 import nl.eduvpn.app.utils.Log
-import java.net.InetAddress
-import java.net.NetworkInterface
-import java.net.SocketException
-import java.util.*
+import java.net.Inet4Address
+import java.net.Inet6Address
 import java.util.regex.Pattern
 
-class IPLiveData : LiveData<IPs>() {
+/**
+ * The addresses assigned by the VPN server to this client.
+ *
+ * The addresses are taken from the link properties of the VPN network, which the connectivity
+ * manager reports when they change. They are kept for the rest of the session, and only posted when
+ * they are different.
+ */
+class IPLiveData(context: Context) : LiveData<IPs>() {
 
-    private val VPN_INTERFACE_NAME = "tun0"
     private val TAG = IPLiveData::class.java.name
 
+    private val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+
+    private val vpnNetworkRequest = NetworkRequest.Builder()
+        .addTransportType(NetworkCapabilities.TRANSPORT_VPN)
+        .removeCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+        .build()
+
+    // The addresses of the current session. Null if they are not known yet.
+    private var sessionIPs: IPs? = null
+
+    private val networkCallback = object : ConnectivityManager.NetworkCallback() {
+        override fun onAvailable(network: Network) {
+            // Before Android 8, the link properties are not always reported after the network is available
+            connectivityManager.getLinkProperties(network)?.let { onLinkPropertiesChanged(network, it) }
+        }
+
+        override fun onLinkPropertiesChanged(network: Network, linkProperties: LinkProperties) {
+            addressesFromLinkProperties(linkProperties)?.let { ips ->
+                updateSessionIPs(IPs(ips.first, ips.second, tunnelData = null))
+            }
+        }
+    }
+
     private val stateListener: StateListener = object : StateListener {
         override fun updateState(
             state: String?,
@@ -46,22 +79,14 @@ class IPLiveData : LiveData<IPs>() {
             level: ConnectionStatus,
             intent: Intent?
         ) {
-            if (EduVPNOpenVPNService.connectionStatusToVPNStatus(level) == VPNService.VPNStatus.DISCONNECTED) {
-                postValue(IPs(null, null, tunnelData = null))
-                return
-            }
-            // Try to get the address from a lookup
-            var ips: Pair<String?, String?>? = lookupVpnIpAddresses()
-            if (ips != null) {
-                postValue(IPs(ips.first, ips.second, tunnelData = null))
-            } else {
-                Log.i(
-                    TAG,
-                    "Unable to determine IP addresses from network interface lookup, using log message instead."
-                )
-                ips = logmessage?.let { lm -> parseVpnIpAddressesFromLogMessage(lm) }
-                if (ips != null) {
-                    postValue(IPs(ips.first, ips.second, tunnelData = null))
+            val status = EduVPNOpenVPNService.connectionStatusToVPNStatus(level)
+            if (status == VPNService.VPNStatus.DISCONNECTED) {
+                endSession()
+            } else if (status == VPNService.VPNStatus.CONNECTED && !hasSessionIPs()) {
+                // The VPN network is not visible to this app, for example when the app is excluded from the VPN
+                Log.i(TAG, "Unable to determine IP addresses from the VPN network, using log message instead.")
+                logmessage?.let { lm -> parseVpnIpAddressesFromLogMessage(lm) }?.let { ips ->
+                    updateSessionIPs(IPs(ips.first, ips.second, tunnelData = null))
                 }
             }
         }
@@ -71,50 +96,57 @@ class IPLiveData : LiveData<IPs>() {
 
     override fun onActive() {
         VpnStatus.addStateListener(stateListener)
+        connectivityManager.registerNetworkCallback(vpnNetworkRequest, networkCallback)
     }
 
     override fun onInactive() {
+        connectivityManager.unregisterNetworkCallback(networkCallback)
         VpnStatus.removeStateListener(stateListener)
     }
 
+    @Synchronized
+    private fun hasSessionIPs(): Boolean {
+        return sessionIPs != null
+    }
+
+    @Synchronized
+    private fun updateSessionIPs(ips: IPs) {
+        if (ips != sessionIPs) {
+            sessionIPs = ips
+            postValue(ips)
+        }
+    }
+
+    @Synchronized
+    private fun endSession() {
+        if (sessionIPs != null || value == null) {
+            sessionIPs = null
+            postValue(IPs(null, null, tunnelData = null))
+        }
+    }
+
     /**
-     * Retrieves the IP4 and IPv6 addresses assigned by the VPN server to this client using a network interface lookup.
+     * Retrieves the IPv4 and IPv6 addresses assigned by the VPN server to this client from the link
+     * properties of the VPN network.
      *
      * @return The IPv4 and IPv6 addresses in this order as a pair. If not found, a null value is returned instead.
      */
-    private fun lookupVpnIpAddresses(): Pair<String?, String?>? {
-        try {
-            val networkInterfaces: List<NetworkInterface> =
-                Collections.list(NetworkInterface.getNetworkInterfaces())
-            for (networkInterface in networkInterfaces) {
-                if (VPN_INTERFACE_NAME == networkInterface.name) {
-                    val addresses: List<InetAddress> =
-                        Collections.list(networkInterface.inetAddresses)
-                    val ips = addresses.mapNotNull { a -> a.hostAddress }
-                    var ipV4: String? = null
-                    var ipV6: String? = null
-                    for (ip in ips) {
-                        val isIPv4 = ip.indexOf(':') < 0
-                        if (isIPv4) {
-                            ipV4 = ip
-                        } else {
-                            val delimiter = ip.indexOf('%')
-                            ipV6 =
-                                if (delimiter < 0) ip.lowercase() else ip.substring(0, delimiter)
-                                    .lowercase()
-                        }
-                    }
-                    return if (ipV4 != null || ipV6 != null) {
-                        Pair(ipV4, ipV6)
-                    } else {
-                        null
-                    }
-                }
+    private fun addressesFromLinkProperties(linkProperties: LinkProperties): Pair<String?, String?>? {
+        var ipV4: String? = null
+        var ipV6: String? = null
+        for (linkAddress in linkProperties.linkAddresses) {
+            val address = linkAddress.address
+            if (address is Inet4Address && ipV4 == null) {
+                ipV4 = address.hostAddress
+            } else if (address is Inet6Address && !address.isLinkLocalAddress && ipV6 == null) {
+                ipV6 = address.hostAddress?.substringBefore('%')?.lowercase()
             }
-        } catch (ex: SocketException) {
-            Log.w(TAG, "Unable to retrieve network interface info!", ex)
         }
-        return null
+        return if (ipV4 != null || ipV6 != null) {
+            Pair(ipV4, ipV6)
+        } else {
+            null
+        }
     }
 
     /**
@@ -3,8 +3,9 @@ package nl.eduvpn.app.service
 import android.content.Context
 import android.net.Uri
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import nl.eduvpn.app.BuildConfig
@@ -19,17 +20,20 @@ import nl.eduvpn.app.entity.SerializedVpnConfig
 import nl.eduvpn.app.entity.exception.CommonException
 import nl.eduvpn.app.service.SerializerService.UnknownFormatException
 import nl.eduvpn.app.utils.Log
+import nl.eduvpn.app.utils.MetricsRegistry
 import org.eduvpn.common.GoBackend
 import org.eduvpn.common.GoBackend.Callback
 import org.eduvpn.common.ServerType
 import java.io.File
 import java.net.NetworkInterface
+import java.util.concurrent.atomic.AtomicBoolean
 
 
 class BackendService(
     private val context: Context,
     private val serializerService: SerializerService,
-    private val preferencesService: PreferencesService
+    private val preferencesService: PreferencesService,
+    private val connectionTracer: ConnectionTracer
 ) {
 
     companion object {
@@ -39,6 +43,38 @@ class BackendService(
         private val TAG = BackendService::class.java.simpleName
     }
 
+    /**
+     * The methods of the common module which are timed. Each one keeps its histogram, so no metric has to
+     * be looked up by name per call.
+     */
+    private enum class NativeMethod(methodName: String) {
+        ADD_SERVER("addServer"),
+        ADDED_SERVERS("addedServers"),
+        CANCEL_COOKIE("cancelCookie"),
+        CERT_EXPIRY_TIMES("certExpiryTimes"),
+        CLEAN_UP("cleanUp"),
+        COOKIE_REPLY("cookieReply"),
+        CURRENT_SERVER("currentServer"),
+        DEREGISTER("deregister"),
+        DISCOVER_ORGANIZATIONS("discoverOrganizations"),
+        DISCOVER_SERVERS("discoverServers"),
+        GET_PROFILES("getProfiles"),
+        NOTIFY_CONNECTED("notifyConnected"),
+        NOTIFY_CONNECTING("notifyConnecting"),
+        NOTIFY_DISCONNECTED("notifyDisconnected"),
+        NOTIFY_DISCONNECTING("notifyDisconnecting"),
+        REGISTER("register"),
+        REMOVE_SERVER("removeServer"),
+        SELECT_COUNTRY("selectCountry"),
+        SELECT_PROFILE("selectProfile"),
+        START_FAIL_OVER("startFailOver"),
+        START_PROXY_GUARD("startProxyGuard"),
+        SWITCH_PROFILE("switchProfile"),
+        UPDATE_RX_BYTES_READ("updateRxBytesRead");
+
+        val histogram = MetricsRegistry.histogram("backend.jni.$methodName")
+    }
+
     enum class State(val nativeValue: Int) {
         OAUTH_STARTED(3),
         ASK_LOCATION(5),
@@ -92,6 +128,7 @@ class BackendService(
                     }
                     val cookieAndData = serializerService.deserializeCookieAndStringData(data)
                     pendingOAuthCookie = cookieAndData.cookie
+                    connectionTracer.beginSpan(ConnectionTracer.SPAN_AUTHORIZATION)
                     startOAuth(cookieAndData.data)
                     true
                 } else if (newState == State.ASK_PROFILE.nativeValue) {
@@ -102,6 +139,7 @@ class BackendService(
                     val cookieAndData =
                         serializerService.deserializeCookieAndCookieAndProfileListData(data)
                     pendingProfileSelectionCookie = cookieAndData.cookie
+                    connectionTracer.beginSpan(ConnectionTracer.SPAN_PROFILE_SELECTION)
                     selectProfiles(cookieAndData.data.getProfileList())
                     true
                 } else if (newState == State.ASK_LOCATION.nativeValue) {
@@ -134,16 +172,18 @@ class BackendService(
         } catch (ex: Exception) {
             Log.e(TAG, "Could not create files dir for Go backend", ex)
         }
-        return goBackend.register(
-            BuildConfig.OAUTH_CLIENT_ID,
-            version,
-            configFilesDir,
-            BuildConfig.DEBUG
-        )
+        return nativeCall(NativeMethod.REGISTER) {
+            goBackend.register(
+                BuildConfig.OAUTH_CLIENT_ID,
+                version,
+                configFilesDir,
+                BuildConfig.DEBUG
+            )
+        }
     }
 
     fun deregister() {
-        val errorString = goBackend.deregister()
+        val errorString = nativeCall(NativeMethod.DEREGISTER) { goBackend.deregister() }
         if (errorString != null) {
             Log.w(TAG, "Unable to deregister Go backend: $errorString")
         }
@@ -153,7 +193,7 @@ class BackendService(
 
     @Throws(CommonException::class)
     fun discoverOrganizations(searchFilter: String): String {
-        val dataWithError = goBackend.discoverOrganizations(searchFilter)
+        val dataWithError = nativeCall(NativeMethod.DISCOVER_ORGANIZATIONS) { goBackend.discoverOrganizations(searchFilter) }
         if (dataWithError.isError) {
             throw CommonException(dataWithError.error)
         }
@@ -165,7 +205,7 @@ class BackendService(
 
     @Throws(CommonException::class)
     fun discoverServers(searchFilter: String): String {
-        val dataWithError = goBackend.discoverServers(searchFilter)
+        val dataWithError = nativeCall(NativeMethod.DISCOVER_SERVERS) { goBackend.discoverServers(searchFilter) }
         if (dataWithError.isError) {
             throw CommonException(dataWithError.error)
         }
@@ -177,10 +217,12 @@ class BackendService(
 
     @kotlin.jvm.Throws(CommonException::class)
     fun addServer(instance: Instance) {
-        val errorString = goBackend.addServer(
-            instance.authorizationType.toNativeServerType().nativeValue,
-            instance.baseURI
-        )
+        val errorString = nativeCall(NativeMethod.ADD_SERVER) {
+            goBackend.addServer(
+                instance.authorizationType.toNativeServerType().nativeValue,
+                instance.baseURI
+            )
+        }
         if (!errorString.isNullOrEmpty()) {
             throw CommonException(errorString)
         }
@@ -188,7 +230,7 @@ class BackendService(
 
     @kotlin.jvm.Throws(CommonException::class)
     fun getCertExpiryTimes():  CertExpiryTimes {
-        val dataWithError = goBackend.certExpiryTimes
+        val dataWithError = nativeCall(NativeMethod.CERT_EXPIRY_TIMES) { goBackend.certExpiryTimes }
         if (dataWithError.isError) {
             throw CommonException(dataWithError.error)
         }
@@ -200,16 +242,58 @@ class BackendService(
 
     @kotlin.jvm.Throws(CommonException::class)
     fun removeServer(instance: Instance) {
-        val error = goBackend.removeServer(
-            instance.authorizationType.toNativeServerType().nativeValue,
-            instance.baseURI
-        )
+        val error = nativeCall(NativeMethod.REMOVE_SERVER) {
+            goBackend.removeServer(
+                instance.authorizationType.toNativeServerType().nativeValue,
+                instance.baseURI
+            )
+        }
         preferencesService.setToken(instance.baseURI, null)
         if (!error.isNullOrEmpty()) {
             throw CommonException(error)
         }
     }
 
+    /**
+     * Removes multiple servers, and removes their tokens in a single write afterwards.
+     * All servers are removed, even if removing one of them fails. Like [removeServer], the token is
+     * removed even if removing the server failed.
+     *
+     * @param instances The servers to remove.
+     * @throws CommonException The last error thrown while removing a server.
+     */
+    @kotlin.jvm.Throws(CommonException::class)
+    fun removeAllServers(instances: List<Instance>) {
+        var lastError: String? = null
+        for (instance in instances) {
+            val error = nativeCall(NativeMethod.REMOVE_SERVER) {
+                goBackend.removeServer(
+                    instance.authorizationType.toNativeServerType().nativeValue,
+                    instance.baseURI
+                )
+            }
+            if (!error.isNullOrEmpty()) {
+                Log.w(TAG, "Unable to remove server ${instance.baseURI}: $error")
+                lastError = error
+            }
+        }
+        preferencesService.setTokens(instances.associate { it.baseURI to null })
+        if (lastError != null) {
+            throw CommonException(lastError)
+        }
+    }
+
+    /**
+     * Calls the common module, and records how long the call took.
+     *
+     * @param method The method which is called, which holds the histogram of its call times.
+     */
+    private inline fun <T> nativeCall(method: NativeMethod, block: () -> T): T {
+        return MetricsRegistry.time(method.histogram) {
+            block()
+        }
+    }
+
     private fun AuthorizationType.toNativeServerType(): ServerType {
         return when (this) {
             AuthorizationType.Distributed -> ServerType.SecureInternet
@@ -226,7 +310,8 @@ class BackendService(
             return false
         }
         pendingOAuthCookie = null
-        val error = goBackend.cookieReply(cookie, urlString)
+        connectionTracer.endSpan(ConnectionTracer.SPAN_AUTHORIZATION)
+        val error = nativeCall(NativeMethod.COOKIE_REPLY) { goBackend.cookieReply(cookie, urlString) }
         if (!error.isNullOrEmpty()) {
             throw CommonException(error)
         }
@@ -234,7 +319,7 @@ class BackendService(
     }
 
     fun getAddedServers(): AddedServers {
-        val dataErrorTuple = goBackend.addedServers
+        val dataErrorTuple = nativeCall(NativeMethod.ADDED_SERVERS) { goBackend.addedServers }
         if (dataErrorTuple.isError) {
             throw CommonException(dataErrorTuple.error)
         }
@@ -243,17 +328,25 @@ class BackendService(
 
     @kotlin.jvm.Throws(CommonException::class, UnknownFormatException::class)
     suspend fun getConfig(instance: Instance, preferTcp: Boolean) = withContext(Dispatchers.IO) {
-        val dataErrorTuple = goBackend.getProfiles(
-            instance.authorizationType.toNativeServerType().nativeValue,
-            instance.baseURI,
-            preferTcp,
-            false
-        )
+        val dataErrorTuple = connectionTracer.span(ConnectionTracer.SPAN_GET_CONFIG) {
+            nativeCall(NativeMethod.GET_PROFILES) {
+                goBackend.getProfiles(
+                    instance.authorizationType.toNativeServerType().nativeValue,
+                    instance.baseURI,
+                    preferTcp,
+                    false
+                )
+            }
+        }
 
         if (dataErrorTuple.isError) {
             throw CommonException(dataErrorTuple.error)
         }
-        val config = serializerService.deserializeSerializedVpnConfig(dataErrorTuple.data)
+        val config = connectionTracer.span(ConnectionTracer.SPAN_DECODE_CONFIG) {
+            serializerService.deserializeSerializedVpnConfig(dataErrorTuple.data)
+        }
+        // Ends when the config has been handed to the main thread
+        connectionTracer.beginSpan(ConnectionTracer.SPAN_DELIVER_CONFIG)
         onConfigReady?.invoke(config, preferTcp)
     }
 
@@ -261,18 +354,20 @@ class BackendService(
     suspend fun selectProfile(profile: Profile, preferTcp: Boolean) {
         val cookie = pendingProfileSelectionCookie
         if (cookie != null) {
-            val result = goBackend.selectProfile(cookie, profile.profileId)
+            connectionTracer.endSpan(ConnectionTracer.SPAN_PROFILE_SELECTION)
+            val result = nativeCall(NativeMethod.SELECT_PROFILE) { goBackend.selectProfile(cookie, profile.profileId) }
             if (result != null) {
                 throw CommonException(result)
             }
             pendingProfileSelectionCookie = null
         } else {
-            val result = goBackend.switchProfile(profile.profileId)
+            val result = nativeCall(NativeMethod.SWITCH_PROFILE) { goBackend.switchProfile(profile.profileId) }
             if (result != null) {
                 throw CommonException(result)
             }
             val instance = getCurrentServer()?.asInstance()
                 ?: throw CommonException("Current server should not be null when switching profiles!")
+            connectionTracer.start(instance.baseURI)
             getConfig(instance, preferTcp)
         }
     }
@@ -280,12 +375,12 @@ class BackendService(
     fun selectCountry(cookie: Int?, organizationId: String, countryCode: String?) {
         val errorString = if (cookie != null) {
             if (countryCode == null) {
-                goBackend.cancelCookie(cookie)
+                nativeCall(NativeMethod.CANCEL_COOKIE) { goBackend.cancelCookie(cookie) }
             } else {
-                goBackend.cookieReply(cookie, countryCode)
+                nativeCall(NativeMethod.COOKIE_REPLY) { goBackend.cookieReply(cookie, countryCode) }
             }
         } else if (countryCode != null) {
-            goBackend.selectCountry(organizationId, countryCode)
+            nativeCall(NativeMethod.SELECT_COUNTRY) { goBackend.selectCountry(organizationId, countryCode) }
         } else {
             null
         }
@@ -295,7 +390,7 @@ class BackendService(
     }
 
     fun getCurrentServer(): CurrentServer? {
-        val dataErrorTuple = goBackend.currentServer
+        val dataErrorTuple = nativeCall(NativeMethod.CURRENT_SERVER) { goBackend.currentServer }
         if (dataErrorTuple.isError) {
             Log.e(TAG, "Unable to determine current server!", CommonException(dataErrorTuple.error))
             return null
@@ -309,29 +404,29 @@ class BackendService(
 
     fun cancelPendingRedirect() {
         pendingOAuthCookie?.let {
-            goBackend.cancelCookie(it)
+            nativeCall(NativeMethod.CANCEL_COOKIE) { goBackend.cancelCookie(it) }
             pendingOAuthCookie = null
         }
     }
 
     fun notifyConnecting() {
-        goBackend.notifyConnecting()
+        nativeCall(NativeMethod.NOTIFY_CONNECTING) { goBackend.notifyConnecting() }
     }
 
     fun notifyConnected () {
-        goBackend.notifyConnected()
+        nativeCall(NativeMethod.NOTIFY_CONNECTED) { goBackend.notifyConnected() }
     }
 
     fun notifyDisconnecting() {
-        goBackend.notifyDisconnecting()
+        nativeCall(NativeMethod.NOTIFY_DISCONNECTING) { goBackend.notifyDisconnecting() }
     }
 
     fun notifyDisconnected() {
-        goBackend.notifyDisconnected()
+        nativeCall(NativeMethod.NOTIFY_DISCONNECTED) { goBackend.notifyDisconnected() }
     }
 
     suspend fun cleanUp() = withContext(Dispatchers.IO) {
-        val result = goBackend.cleanUp()
+        val result = nativeCall(NativeMethod.CLEAN_UP) { goBackend.cleanUp() }
         Log.i(TAG, "Cleaned up common VPN connection with message: $result")
     }
 
@@ -348,48 +443,71 @@ class BackendService(
      * Starts checking if there's a stable connection on the tunnel. Only works on WireGuard for now.
      */
     suspend fun startFailOver(service: VPNService, onFailOverNeeded: () -> Unit) {
-        goBackend.updateRxBytesRead(0)
-        val updateBytesJob = GlobalScope.launch {
-            service.byteCountFlow.collectLatest {
-                goBackend.updateRxBytesRead(it?.bytesIn ?: 0L)
+        val failOverNotified = AtomicBoolean(false)
+        val notifyFailOverNeeded = {
+            if (failOverNotified.compareAndSet(false, true)) {
+                onFailOverNeeded()
             }
         }
-        service.ipFlow.collectLatest { ips ->
-            val tunnelIp = ips?.tunnelData?.tunnelIp
-            var mtu = ips?.tunnelData?.mtu
-            if (tunnelIp == null) {
-                throw CommonException("Could not start failover, because IP was missing!")
+        nativeCall(NativeMethod.UPDATE_RX_BYTES_READ) { goBackend.updateRxBytesRead(0) }
+        // The helper jobs are children of this scope, so they can't outlive the failover check of this session
+        coroutineScope {
+            val updateBytesJob = launch(Dispatchers.Default) {
+                service.byteCountFlow.collectLatest {
+                    nativeCall(NativeMethod.UPDATE_RX_BYTES_READ) { goBackend.updateRxBytesRead(it?.bytesIn ?: 0L) }
+                }
             }
-            if (mtu == null) {
-                // We could try to get it from the actual network interface
-                try {
-                    val tunnelInterface = NetworkInterface.getNetworkInterfaces().toList().firstOrNull {
-                        it.inetAddresses.toList().any {
-                            if (it.hostAddress != null) {
-                                it.hostAddress!! in (ips.clientIpv4?.split(",") ?: emptyList()) ||
-                                        it.hostAddress!! in (ips.clientIpv6?.split(",") ?: emptyList())
-                            } else {
-                                false
+            // Also fail over if the handshake does not complete, without waiting for the common module to give up
+            val handshakeJob = launch(Dispatchers.Default) {
+                val failingPeer = service.peerDiagnosticsFlow
+                    .first { peers -> peers.any { it.handshakeFailing } }
+                    .first { it.handshakeFailing }
+                Log.w(TAG, "Handshake with peer ${failingPeer.publicKey} is failing, failover needed.")
+                notifyFailOverNeeded()
+            }
+            try {
+                service.ipFlow.collectLatest { ips ->
+                    val tunnelIp = ips?.tunnelData?.tunnelIp
+                    var mtu = ips?.tunnelData?.mtu
+                    if (tunnelIp == null) {
+                        throw CommonException("Could not start failover, because IP was missing!")
+                    }
+                    if (mtu == null) {
+                        // We could try to get it from the actual network interface
+                        try {
+                            val tunnelInterface = NetworkInterface.getNetworkInterfaces().toList().firstOrNull {
+                                it.inetAddresses.toList().any {
+                                    if (it.hostAddress != null) {
+                                        it.hostAddress!! in (ips.clientIpv4?.split(",") ?: emptyList()) ||
+                                                it.hostAddress!! in (ips.clientIpv6?.split(",") ?: emptyList())
+                                    } else {
+                                        false
+                                    }
+                                }
                             }
+                            mtu = tunnelInterface?.mtu
+                        } catch (ex: Exception) {
+                            Log.e(TAG, "Could not determine MTU!", ex)
                         }
                     }
-                    mtu = tunnelInterface?.mtu
-                } catch (ex: Exception) {
-                    Log.e(TAG, "Could not determine MTU!", ex)
+                    if (mtu == null) {
+                        throw CommonException("Could not start failover, because MTU was missing!")
+                    }
+                    Log.v(TAG, "Failover started with tunnel IP: $tunnelIp and MTU: $mtu")
+                    val result = nativeCall(NativeMethod.START_FAIL_OVER) { goBackend.startFailOver(tunnelIp, mtu) }
+                    Log.v(TAG, "Failover ended with result: ${result.doesRequireFailover}")
+                    updateBytesJob.cancel()
+                    handshakeJob.cancel()
+                    if (result.isError) {
+                        throw CommonException(result.error)
+                    }
+                    if (result.doesRequireFailover) {
+                        notifyFailOverNeeded()
+                    }
                 }
-            }
-            if (mtu == null) {
-                throw CommonException("Could not start failover, because MTU was missing!")
-            }
-            Log.v(TAG, "Failover started with tunnel IP: $tunnelIp and MTU: $mtu")
-            val result = goBackend.startFailOver(tunnelIp, mtu)
-            Log.v(TAG, "Failover ended with result: ${result.doesRequireFailover}")
-            updateBytesJob.cancel()
-            if (result.isError) {
-                throw CommonException(result.error)
-            }
-            if (result.doesRequireFailover) {
-                onFailOverNeeded()
+            } finally {
+                updateBytesJob.cancel()
+                handshakeJob.cancel()
             }
         }
     }
@@ -397,7 +515,7 @@ class BackendService(
 
     @Throws(CommonException::class)
     suspend fun startProxyguard(proxy: ProxySettings) = withContext(Dispatchers.IO) {
-        val result = goBackend.startProxyGuard(0, proxy.listen, proxy.peer)
+        val result = nativeCall(NativeMethod.START_PROXY_GUARD) { goBackend.startProxyGuard(0, proxy.listen, proxy.peer) }
         if (!result.isNullOrEmpty()) {
             throw CommonException(result)
         }
@@ -0,0 +1,244 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import android.content.Context
+import android.os.Build
+import android.os.SystemClock
+import android.os.Trace
+import nl.eduvpn.app.entity.ConnectSpan
+import nl.eduvpn.app.entity.ConnectTrace
+import nl.eduvpn.app.entity.ConnectTraceList
+import nl.eduvpn.app.utils.Log
+import nl.eduvpn.app.utils.MetricsRegistry
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Records how long each phase of a connection attempt takes, from the tap on a server until the
+ * tunnel reports that it is connected.
+ *
+ * Every phase is a span, which is also shown as an async section in system traces on Android 10 and
+ * newer. The phases of an attempt run on different threads, so older versions, which only support
+ * sections on a single thread, only get the recorded breakdown.
+ * The breakdown of the last attempts is kept in a file, so slow connects can be looked at afterwards.
+ */
+class ConnectionTracer(
+    context: Context,
+    private val serializerService: SerializerService
+) {
+
+    companion object {
+        private val TAG = ConnectionTracer::class.java.simpleName
+
+        const val SPAN_AWAIT_SECURE_STORE = "await_secure_store"
+        const val SPAN_ADD_SERVER = "add_server"
+        const val SPAN_GET_CONFIG = "get_config"
+        const val SPAN_AUTHORIZATION = "authorization"
+        const val SPAN_PROFILE_SELECTION = "profile_selection"
+        const val SPAN_DECODE_CONFIG = "decode_config"
+        const val SPAN_DELIVER_CONFIG = "deliver_config"
+        const val SPAN_PARSE_CONFIG = "parse_config"
+        const val SPAN_PROXYGUARD = "proxyguard"
+        const val SPAN_START_TUNNEL = "start_tunnel"
+        const val SPAN_TUNNEL_CONNECTING = "tunnel_connecting"
+
+        const val OUTCOME_CONNECTED = "connected"
+        const val OUTCOME_FAILED = "failed"
+
+        private const val TRACE_SECTION_PREFIX = "connect:"
+        private const val TRACES_FILE_NAME = "connect_traces.json"
+        private const val MAX_STORED_TRACES = 20
+    }
+
+    private class ActiveTrace(
+        val id: Int,
+        val serverId: String?,
+        val startedAt: Long,
+        val startNanos: Long
+    ) {
+        // Start times of the spans which are still running, in elapsed realtime nanoseconds, by name
+        val openSpans = LinkedHashMap<String, Long>()
+        val spans = ArrayList<ConnectSpan>()
+    }
+
+    private val tracesFile = File(context.filesDir, TRACES_FILE_NAME)
+
+    // Writes to the traces file happen in order, away from the calling thread.
+    private val writeExecutor = Executors.newSingleThreadExecutor()
+
+    // Guarded by this.
+    private var activeTrace: ActiveTrace? = null
+    private var nextTraceId = 1
+
+    /**
+     * Starts tracing a new connection attempt. An attempt which was still running is dropped.
+     *
+     * @param serverId The ID of the server which is connected to, if known.
+     */
+    @Synchronized
+    fun start(serverId: String?) {
+        activeTrace?.let { abandoned ->
+            val abandonedMillis = TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() - abandoned.startNanos)
+            Log.i(TAG, "Dropping unfinished connect trace after $abandonedMillis ms.")
+            abandoned.openSpans.keys.forEach { endTraceSection(it, abandoned.id) }
+        }
+        activeTrace = ActiveTrace(
+            nextTraceId++,
+            serverId,
+            System.currentTimeMillis(),
+            SystemClock.elapsedRealtimeNanos()
+        )
+    }
+
+    /**
+     * Starts a span of the current attempt. Does nothing if no attempt is being traced.
+     */
+    @Synchronized
+    fun beginSpan(name: String) {
+        val trace = activeTrace ?: return
+        if (trace.openSpans.containsKey(name)) {
+            return
+        }
+        trace.openSpans[name] = SystemClock.elapsedRealtimeNanos()
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(TRACE_SECTION_PREFIX + name, trace.id)
+        }
+    }
+
+    /**
+     * Ends a span of the current attempt. Does nothing if the span was not started.
+     */
+    @Synchronized
+    fun endSpan(name: String) {
+        val trace = activeTrace ?: return
+        val startNanos = trace.openSpans.remove(name) ?: return
+        endTraceSection(name, trace.id)
+        addSpan(trace, name, startNanos, SystemClock.elapsedRealtimeNanos())
+    }
+
+    /**
+     * Runs a block as a span of the current attempt.
+     */
+    inline fun <T> span(name: String, block: () -> T): T {
+        beginSpan(name)
+        try {
+            return block()
+        } finally {
+            endSpan(name)
+        }
+    }
+
+    /**
+     * Ends the current attempt once the tunnel has been started and reaches a final status.
+     */
+    fun onStatusChanged(status: VPNService.VPNStatus) {
+        synchronized(this) {
+            val trace = activeTrace ?: return
+            val tunnelStarted = trace.openSpans.containsKey(SPAN_START_TUNNEL) ||
+                    trace.spans.any { it.name == SPAN_START_TUNNEL }
+            if (!tunnelStarted) {
+                return
+            }
+        }
+        when (status) {
+            VPNService.VPNStatus.CONNECTED -> finish(OUTCOME_CONNECTED)
+            VPNService.VPNStatus.FAILED -> finish(OUTCOME_FAILED)
+            else -> Unit
+        }
+    }
+
+    /**
+     * Ends the current attempt, and stores its breakdown. Spans which are still running end now.
+     *
+     * @param outcome One of the OUTCOME_ constants.
+     */
+    fun finish(outcome: String) {
+        val finished = synchronized(this) {
+            val trace = activeTrace ?: return
+            activeTrace = null
+            val now = SystemClock.elapsedRealtimeNanos()
+            trace.openSpans.forEach { (name, startNanos) ->
+                endTraceSection(name, trace.id)
+                addSpan(trace, name, startNanos, now)
+            }
+            ConnectTrace(
+                serverId = trace.serverId,
+                startedAt = trace.startedAt,
+                outcome = outcome,
+                totalMillis = TimeUnit.NANOSECONDS.toMillis(now - trace.startNanos),
+                spans = trace.spans.sortedBy { it.offsetMillis }
+            )
+        }
+        Log.i(TAG, "Connect $outcome after ${finished.totalMillis} ms: " +
+                finished.spans.joinToString { "${it.name}=${it.durationMillis} ms" })
+        writeExecutor.execute { store(finished) }
+    }
+
+    /**
+     * @return The stored breakdowns of the last connection attempts, oldest first.
+     */
+    fun storedTraces(): List<ConnectTrace> {
+        return try {
+            if (tracesFile.exists()) {
+                serializerService.deserializeConnectTraces(tracesFile.readText()).traces
+            } else {
+                emptyList()
+            }
+        } catch (ex: Exception) {
+            Log.w(TAG, "Unable to read the stored connect traces.", ex)
+            emptyList()
+        }
+    }
+
+    /**
+     * Adds a finished span. Timed in nanoseconds, so the histograms also show the phases which take
+     * less than a millisecond. The stored breakdown is rounded down to milliseconds.
+     */
+    private fun addSpan(trace: ActiveTrace, name: String, startNanos: Long, endNanos: Long) {
+        val durationNanos = endNanos - startNanos
+        trace.spans.add(
+            ConnectSpan(
+                name,
+                TimeUnit.NANOSECONDS.toMillis(startNanos - trace.startNanos),
+                TimeUnit.NANOSECONDS.toMillis(durationNanos)
+            )
+        )
+        MetricsRegistry.histogram("connect.${name}_us").record(TimeUnit.NANOSECONDS.toMicros(durationNanos))
+    }
+
+    private fun endTraceSection(name: String, traceId: Int) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(TRACE_SECTION_PREFIX + name, traceId)
+        }
+    }
+
+    private fun store(trace: ConnectTrace) {
+        val traces = (storedTraces() + trace).takeLast(MAX_STORED_TRACES)
+        try {
+            val tempFile = File(tracesFile.path + ".tmp")
+            tempFile.writeText(serializerService.serializeConnectTraces(ConnectTraceList(traces)))
+            if (!tempFile.renameTo(tracesFile)) {
+                throw IOException("Unable to replace ${tracesFile.name}!")
+            }
+        } catch (ex: Exception) {
+            Log.w(TAG, "Unable to store the connect trace.", ex)
+        }
+    }
+}
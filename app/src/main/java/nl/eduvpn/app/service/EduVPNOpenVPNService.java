@@ -19,27 +19,29 @@ package nl.eduvpn.app.service;
 
 import android.app.Activity;
 import android.app.Notification;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
-import android.os.Handler;
-import android.os.IBinder;
+import android.os.Build;
+import android.os.PowerManager;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.lifecycle.FlowLiveDataConversions;
-import androidx.lifecycle.LiveData;
 
 import org.eduvpn.common.Protocol;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Locale;
+import java.util.Map;
 
 import de.blinkt.openvpn.LaunchVPN;
 import de.blinkt.openvpn.VpnProfile;
@@ -47,17 +49,17 @@ import de.blinkt.openvpn.core.ConfigParser;
 import de.blinkt.openvpn.core.Connection;
 import de.blinkt.openvpn.core.ConnectionStatus;
 import de.blinkt.openvpn.core.IOpenVPNServiceInternal;
-import de.blinkt.openvpn.core.OpenVPNService;
 import de.blinkt.openvpn.core.ProfileManager;
 import de.blinkt.openvpn.core.VpnStatus;
+import kotlin.Unit;
 import kotlinx.coroutines.flow.Flow;
 import nl.eduvpn.app.R;
 import nl.eduvpn.app.livedata.ByteCount;
 import nl.eduvpn.app.livedata.IPs;
-import nl.eduvpn.app.livedata.UnlessDisconnectedLiveData;
-import nl.eduvpn.app.livedata.openvpn.ByteCountLiveData;
+import nl.eduvpn.app.livedata.openvpn.ByteCountBridge;
 import nl.eduvpn.app.livedata.openvpn.IPLiveData;
 import nl.eduvpn.app.utils.Log;
+import nl.eduvpn.app.utils.MetricsRegistry;
 
 /**
  * Service responsible for managing the OpenVPN profiles and the connection.
@@ -71,78 +73,58 @@ public class EduVPNOpenVPNService extends VPNService implements VpnStatus.StateL
 
     // Stores the current VPN status.
     private ConnectionStatus _connectionStatus = ConnectionStatus.LEVEL_NOTCONNECTED;
-    private final Handler _updatesHandler = new Handler();
 
     private Integer _errorResource;
 
-    private IOpenVPNServiceInternal _openVPNService;
+    private final OpenVPNBindingManager _bindingManager;
 
-    private final Set<String> _configsCreatedInThisSession = new HashSet<>();
-
-    private final ServiceConnection _serviceConnection = new ServiceConnection() {
-
-        @Override
-        public void onServiceConnected(ComponentName className, IBinder binder) {
-            _openVPNService = IOpenVPNServiceInternal.Stub.asInterface(binder);
-        }
+    // The number of imported profiles which are kept for reuse.
+    private static final int MAX_CACHED_PROFILES = 8;
 
+    // The UUIDs of the profiles imported in this session, by the hash of their config and options,
+    // with the least recently used one first. Profiles which are not in here are removed on import.
+    private final LinkedHashMap<String, String> _profilesByConfigHash = new LinkedHashMap<String, String>(MAX_CACHED_PROFILES, 0.75f, true) {
         @Override
-        public void onServiceDisconnected(ComponentName arg0) {
-            _openVPNService = null;
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_PROFILES;
         }
     };
 
+    // When the current status was entered, in nanoseconds.
+    private long _statusChangedAtNanos = System.nanoTime();
+
+    // The histograms of the time spent in a status before changing to another, by the old and the new status.
+    // Created on first use, so transitions which never happen do not show up.
+    private final MetricsRegistry.Histogram[][] _transitionHistograms =
+            new MetricsRegistry.Histogram[VPNStatus.values().length][VPNStatus.values().length];
+
     private IPLiveData _ipLiveData;
-    private LiveData<ByteCount> _byteCountLiveData;
+    private final ByteCountBridge _byteCountBridge;
 
     /**
      * Constructor.
      *
-     * @param context The application or activity context.
+     * @param context        The application or activity context.
+     * @param bindingManager Holds the binding to the OpenVPN service.
+     * @param ticker         The ticker at which the byte counts are read.
      */
-    public EduVPNOpenVPNService(Context context, IPLiveData ipLiveData) {
+    public EduVPNOpenVPNService(Context context, IPLiveData ipLiveData, OpenVPNBindingManager bindingManager, Ticker ticker) {
         _context = context;
         _ipLiveData = ipLiveData;
-        _byteCountLiveData = UnlessDisconnectedLiveData.INSTANCE.create(new ByteCountLiveData(), this);
-    }
-
-    /**
-     * Call this when your activity is starting up.
-     *
-     * @param activity The current activity to bind the service with.
-     */
-    public void onCreate(@NonNull Activity activity) {
-        Intent intent = new Intent(activity, OpenVPNService.class);
-        intent.putExtra(OpenVPNService.ALWAYS_SHOW_NOTIFICATION, false);
-        intent.setAction(OpenVPNService.START_SERVICE);
-        activity.bindService(intent, _serviceConnection, Context.BIND_AUTO_CREATE);
-    }
-
-    @Override
-    public void onActive() {
+        _bindingManager = bindingManager;
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        _byteCountBridge = new ByteCountBridge(
+                () -> Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && powerManager.isDeviceIdleMode(),
+                ticker
+        );
+        // The status is published for as long as the app runs, so no transition is missed
         VpnStatus.addStateListener(this);
     }
 
-    @Override
-    public void onInactive() {
-        VpnStatus.removeStateListener(this);
-    }
-
-    /**
-     * Call this when the activity is being destroyed.
-     * This does not shut down the VPN connection, only removes the listeners from it. The listeners will be reattached
-     * on the next startup.
-     *
-     * @param activity The activity being destroyed.
-     */
-    public void onDestroy(@NonNull Activity activity) {
-        activity.unbindService(_serviceConnection);
-    }
-
     @NonNull
     @Override
-    public Flow<ByteCount> getByteCountFlow() {
-        return FlowLiveDataConversions.asFlow(_byteCountLiveData);
+    protected Flow<ByteCount> createByteCountFlow() {
+        return _byteCountBridge.byteCounts(() -> getStatus() == VPNStatus.DISCONNECTED);
     }
 
     @NonNull
@@ -151,41 +133,92 @@ public class EduVPNOpenVPNService extends VPNService implements VpnStatus.StateL
         return FlowLiveDataConversions.asFlow(_ipLiveData);
     }
 
+    @Nullable
+    @Override
+    public ByteCount lastByteCount() {
+        final ByteCount[] result = new ByteCount[1];
+        VpnStatus.ByteCountListener listener = (in, out, diffIn, diffOut) ->
+                result[0] = new ByteCount(in, out, SystemClock.elapsedRealtime());
+        // Adding a listener reports the last known byte counts right away
+        VpnStatus.addByteCountListener(listener);
+        VpnStatus.removeByteCountListener(listener);
+        return result[0];
+    }
+
     /**
      * Imports a config which is represented by a string.
+     * If the same config was imported recently with the same options, the saved profile is reused.
      *
      * @param configString  The config as a string.
      * @param preferredName The preferred name for the config.
      */
     @Nullable
     public VpnProfile importConfig(String configString, String preferredName) {
-        ConfigParser configParser = new ConfigParser();
+        String configHash = configHash(configString, preferredName);
+        synchronized (_profilesByConfigHash) {
+            String cachedUUID = _profilesByConfigHash.get(configHash);
+            if (cachedUUID != null) {
+                VpnProfile cachedProfile = ProfileManager.get(_context, cachedUUID);
+                if (cachedProfile != null) {
+                    // Same config and options as before, so there is nothing to parse or save
+                    Log.i(TAG, "Reusing profile with UUID: " + cachedUUID);
+                    return cachedProfile;
+                }
+                _profilesByConfigHash.remove(configHash);
+            }
+            ConfigParser configParser = new ConfigParser();
+            try {
+                configParser.parseConfig(new StringReader(configString));
+                VpnProfile profile = configParser.convertProfile();
+                _profilesByConfigHash.put(configHash, profile.getUUIDString());
+                profile.mAlias = _context.getString(R.string.app_name);
+                if (preferredName != null) {
+                    profile.mName = preferredName;
+                }
+                ProfileManager profileManager = ProfileManager.getInstance(_context);
+                // We remove old profiles
+                List<VpnProfile> profiles = new ArrayList<>(profileManager.getProfiles());
+                for (VpnProfile savedProfile : profiles) {
+                    // If the profile was created recently in this session, we do not remove it yet.
+                    // This is because it is possible to be connected to an existing profile, but trying to connect to a new one.
+                    if (!_profilesByConfigHash.containsValue(savedProfile.getUUIDString())) {
+                        profileManager.removeProfile(_context, savedProfile);
+                    }
+                }
+                profileManager.addProfile(profile);
+                ProfileManager.saveProfile(_context, profile);
+                profileManager.saveProfileList(_context);
+                Log.i(TAG, "Added and saved profile with UUID: " + profile.getUUIDString());
+                return profile;
+            } catch (IOException | ConfigParser.ConfigParseError e) {
+                _profilesByConfigHash.remove(configHash);
+                Log.e(TAG, "Error converting profile!", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return The SHA-256 hash of the config together with the options which are applied to the profile.
+     */
+    private static String configHash(String configString, @Nullable String preferredName) {
         try {
-            configParser.parseConfig(new StringReader(configString));
-            VpnProfile profile = configParser.convertProfile();
-            _configsCreatedInThisSession.add(profile.getUUIDString());
-            profile.mAlias = _context.getString(R.string.app_name);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(configString.getBytes(StandardCharsets.UTF_8));
+            // Separated by a character which can not occur in the config text
+            digest.update((byte)0);
             if (preferredName != null) {
-                profile.mName = preferredName;
+                digest.update(preferredName.getBytes(StandardCharsets.UTF_8));
             }
-            ProfileManager profileManager = ProfileManager.getInstance(_context);
-            // We remove old profiles
-            List<VpnProfile> profiles = new ArrayList<>(profileManager.getProfiles());
-            for (VpnProfile savedProfile : profiles) {
-                // If the profile was created in this session, we do not remove it yet.
-                // This is because it is possible to be connected to an existing profile, but trying to connect to a new one.
-                if (!_configsCreatedInThisSession.contains(savedProfile.getUUIDString())) {
-                    profileManager.removeProfile(_context, savedProfile);
-                }
+            byte[] hash = digest.digest();
+            StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                result.append(String.format(Locale.ROOT, "%02x", b));
             }
-            profileManager.addProfile(profile);
-            ProfileManager.saveProfile(_context, profile);
-            profileManager.saveProfileList(_context);
-            Log.i(TAG, "Added and saved profile with UUID: " + profile.getUUIDString());
-            return profile;
-        } catch (IOException | ConfigParser.ConfigParseError e) {
-            Log.e(TAG, "Error converting profile!", e);
-            return null;
+            return result.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Android version has SHA-256
+            throw new IllegalStateException(ex);
         }
     }
 
@@ -198,6 +231,8 @@ public class EduVPNOpenVPNService extends VPNService implements VpnStatus.StateL
     public void connect(@NonNull Activity activity, @NonNull VpnProfile vpnProfile, Boolean preferTcp) {
         Log.i(TAG, "Initiating connection with profile:" + vpnProfile.getUUIDString());
         Log.i(TAG, "Prefer TCP: " + preferTcp);
+        // Binding takes a while the first time, start it before the notification needs the service
+        _bindingManager.bind();
         // If force TCP is enabled, disable the UDP connections
         for (Connection connection : vpnProfile.mConnections) {
             if (connection.mUseUdp) {
@@ -220,32 +255,37 @@ public class EduVPNOpenVPNService extends VPNService implements VpnStatus.StateL
         // this functionality to the OpenVPN library, but we have to use our own notification for
         // WireGuard anyway because the WireGuard library does not provide a notification, so we
         // might as well use the same notification for all VPN implementations.
-        try {
-            _openVPNService.startForeground(id, notification);
-        } catch (RemoteException ex) {
-            Log.e(TAG, "Exception when trying to start foreground service.", ex);
-        }
+        // Waits for the binding if the service has not been connected yet
+        _bindingManager.whenBound(service -> {
+            try {
+                service.startForeground(id, notification);
+            } catch (RemoteException ex) {
+                Log.e(TAG, "Exception when trying to start foreground service.", ex);
+            }
+            return Unit.INSTANCE;
+        });
     }
 
     /**
      * Disconnects the current VPN connection.
      */
     public void disconnect() {
-        try {
-            if (_openVPNService == null) {
-                ConnectionStatus previousStatus = _connectionStatus;
-                _connectionStatus = ConnectionStatus.LEVEL_NOTCONNECTED;
-                if (previousStatus != _connectionStatus) {
-                    _updatesHandler.post(() -> {
-                        setValue(connectionStatusToVPNStatus(_connectionStatus));
-                    });
+        // After a restart of the app process, the service might not be bound yet while the tunnel is still up
+        _bindingManager.whenBound(openVPNService -> {
+            try {
+                if (!openVPNService.stopVPN(false)) {
+                    // There was no tunnel to stop, so no new state will be reported
+                    ConnectionStatus previousStatus = _connectionStatus;
+                    _connectionStatus = ConnectionStatus.LEVEL_NOTCONNECTED;
+                    if (previousStatus != _connectionStatus) {
+                        publishStatus(connectionStatusToVPNStatus(_connectionStatus));
+                    }
                 }
-            } else {
-                _openVPNService.stopVPN(false);
+            } catch (RemoteException ex) {
+                Log.e(TAG, "Exception when trying to stop connection. Connection might not be closed!", ex);
             }
-        } catch (RemoteException ex) {
-            Log.e(TAG, "Exception when trying to stop connection. Connection might not be closed!", ex);
-        }
+            return Unit.INSTANCE;
+        });
         _onDisconnect();
     }
 
@@ -257,6 +297,15 @@ public class EduVPNOpenVPNService extends VPNService implements VpnStatus.StateL
         _errorResource = null;
     }
 
+    private MetricsRegistry.Histogram transitionHistogram(VPNStatus from, VPNStatus to) {
+        MetricsRegistry.Histogram histogram = _transitionHistograms[from.ordinal()][to.ordinal()];
+        if (histogram == null) {
+            histogram = MetricsRegistry.histogram("openvpn.transition." + from.name().toLowerCase(Locale.ROOT) + "_to_" + to.name().toLowerCase(Locale.ROOT) + "_us");
+            _transitionHistograms[from.ordinal()][to.ordinal()] = histogram;
+        }
+        return histogram;
+    }
+
     /**
      * Converts a connection level to a more simple status.
      */
@@ -282,16 +331,6 @@ public class EduVPNOpenVPNService extends VPNService implements VpnStatus.StateL
         }
     }
 
-    /**
-     * Returns a more simple status for the current connection level.
-     *
-     * @return The current status of the VPN.
-     */
-    @NonNull
-    public VPNStatus getStatus() {
-        return connectionStatusToVPNStatus(_connectionStatus);
-    }
-
     /**
      * Returns the error string.
      *
@@ -320,15 +359,16 @@ public class EduVPNOpenVPNService extends VPNService implements VpnStatus.StateL
             // Nothing changed.
             return;
         }
+        long now = System.nanoTime();
+        transitionHistogram(oldStatus, status).record((now - _statusChangedAtNanos) / 1000);
+        _statusChangedAtNanos = now;
         if (status == VPNStatus.FAILED) {
             _errorResource = localizedResId;
         } else if (status == VPNStatus.DISCONNECTED) {
             _onDisconnect();
         }
-        // Notify the observers.
-        _updatesHandler.post(() -> {
-            setValue(status);
-        });
+        // Notify the collectors, directly from the thread of OpenVPN.
+        publishStatus(status);
     }
 
     @NonNull
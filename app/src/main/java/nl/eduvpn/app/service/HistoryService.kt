@@ -99,17 +99,18 @@ class HistoryService(private val backendService: BackendService) {
     @Throws(CommonException::class, UnknownFormatException::class)
     suspend fun removeOrganizationData() {
         val instancesToRemove = backendService.getAddedServers().asInstances()
-        var errorThrown: CommonException? = null
-        for (instance in instancesToRemove) {
+        try {
+            backendService.removeAllServers(instancesToRemove)
+        } catch (ex: CommonException) {
+            // Some servers might have been removed, but a failing reload must not hide the removal error
             try {
-                removeAllDataForInstance(instance)
-            } catch (ex: CommonException) {
-                errorThrown = ex
+                load()
+            } catch (loadEx: Exception) {
+                Log.w(TAG, "Unable to reload the servers after a failed removal.", loadEx)
             }
+            throw ex
         }
-        if (errorThrown != null) {
-            throw errorThrown
-        }
+        load()
     }
 
     companion object {
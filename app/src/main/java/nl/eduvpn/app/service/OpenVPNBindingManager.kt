@@ -0,0 +1,151 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import android.content.ComponentName
+import android.content.Context
+import android.content.Intent
+import android.content.ServiceConnection
+import android.os.IBinder
+import de.blinkt.openvpn.core.IOpenVPNServiceInternal
+import de.blinkt.openvpn.core.OpenVPNService
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import nl.eduvpn.app.utils.Log
+import org.eduvpn.common.Protocol
+import java.io.IOException
+
+/**
+ * Keeps the binding to the OpenVPN service for the lifetime of the application.
+ *
+ * The service is bound once, on first use, and stays bound when activities are recreated. When the
+ * service dies, the system binds it again by itself. Coroutines which need the service wait for it
+ * with [await], other code passes an action to [whenBound].
+ *
+ * @param context            The application context.
+ * @param preferencesService Used to guess if the next connection uses OpenVPN.
+ */
+class OpenVPNBindingManager(
+    private val context: Context,
+    private val preferencesService: PreferencesService
+) {
+
+    companion object {
+        private val TAG = OpenVPNBindingManager::class.java.simpleName
+
+        // Actions passed to whenBound are dropped if the service is not connected within this time,
+        // so they can not affect a later connection.
+        private const val BIND_TIMEOUT_MS = 10_000L
+    }
+
+    private val lock = Any()
+    private var isBound = false
+    // Completed while the service is connected, replaced when it disconnects or binding fails.
+    private var connected = CompletableDeferred<IOpenVPNServiceInternal>()
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main.immediate)
+
+    private val serviceConnection = object : ServiceConnection {
+        override fun onServiceConnected(name: ComponentName, binder: IBinder) {
+            val connectedService = IOpenVPNServiceInternal.Stub.asInterface(binder)
+            synchronized(lock) {
+                if (connected.isCompleted) {
+                    connected = CompletableDeferred()
+                }
+                connected.complete(connectedService)
+            }
+        }
+
+        override fun onServiceDisconnected(name: ComponentName) {
+            Log.w(TAG, "OpenVPN service disconnected, waiting for it to be bound again.")
+            synchronized(lock) {
+                if (connected.isCompleted) {
+                    connected = CompletableDeferred()
+                }
+            }
+        }
+    }
+
+    /**
+     * Binds the OpenVPN service, if it is not bound yet.
+     */
+    fun bind() {
+        synchronized(lock) {
+            if (isBound) {
+                return
+            }
+            isBound = true
+        }
+        val intent = Intent(context, OpenVPNService::class.java)
+            .putExtra(OpenVPNService.ALWAYS_SHOW_NOTIFICATION, false)
+            .setAction(OpenVPNService.START_SERVICE)
+        if (!context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE)) {
+            Log.e(TAG, "Unable to bind the OpenVPN service!")
+            synchronized(lock) {
+                isBound = false
+                // Fails everyone waiting for this binding, the next bind starts over
+                connected.completeExceptionally(IOException("Unable to bind the OpenVPN service!"))
+                connected = CompletableDeferred()
+            }
+        }
+    }
+
+    /**
+     * Creates the OpenVPN service ahead of time if the last connection used OpenVPN, so it is ready
+     * when the next connection starts.
+     */
+    fun preWarmIfLikelyNeeded() {
+        when (preferencesService.getCurrentProtocol()) {
+            Protocol.OpenVPN.nativeValue, Protocol.OpenVPNWithTCP.nativeValue -> bind()
+            else -> Unit
+        }
+    }
+
+    /**
+     * Binds the service if needed, and suspends until it is connected.
+     *
+     * @throws IOException If the service could not be bound.
+     */
+    suspend fun await(): IOpenVPNServiceInternal {
+        bind()
+        return synchronized(lock) { connected }.await()
+    }
+
+    /**
+     * Binds the service if needed, and runs the action with it on the main thread. The action runs right
+     * away if the service is connected. It is dropped if the service can not be bound, or does not connect
+     * within a short time.
+     */
+    fun whenBound(action: (IOpenVPNServiceInternal) -> Unit) {
+        scope.launch {
+            val service = try {
+                withTimeoutOrNull(BIND_TIMEOUT_MS) { await() }
+            } catch (ex: IOException) {
+                null
+            }
+            if (service == null) {
+                Log.e(TAG, "The OpenVPN service did not connect, dropping the action.")
+                return@launch
+            }
+            action(service)
+        }
+    }
+}
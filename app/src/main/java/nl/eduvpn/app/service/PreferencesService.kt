@@ -21,18 +21,31 @@ import android.annotation.SuppressLint
 import android.content.Context
 import android.content.SharedPreferences
 import android.os.Build
+import android.os.Looper
+import android.os.SystemClock
+import android.provider.Settings
 import androidx.annotation.VisibleForTesting
 import androidx.security.crypto.EncryptedSharedPreferences
 import androidx.security.crypto.MasterKey
+import com.google.crypto.tink.Aead
 import nl.eduvpn.app.BuildConfig
 import nl.eduvpn.app.Constants
 import nl.eduvpn.app.entity.*
+import kotlinx.coroutines.CompletableDeferred
 import nl.eduvpn.app.utils.Log
+import nl.eduvpn.app.utils.StartupTimings
 import org.eduvpn.common.Protocol
 import org.json.JSONException
 import org.json.JSONObject
 import java.io.File
 import java.io.IOException
+import java.security.GeneralSecurityException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
 
 /**
  * This service is used to save temporary data
@@ -49,16 +62,24 @@ class PreferencesService(
     companion object {
         private val TAG = PreferencesService::class.simpleName
 
-        private const val STORAGE_VERSION = 5
+        private const val STORAGE_VERSION = 7
 
         private const val KEY_OLD_PREFERENCES_NAME = "app_preferences"
         private const val KEY_SECURE_PREFERENCES_NAME = "secure_app_preferences"
+        private const val SEALED_SETTINGS_FILE_NAME = "secure_app_settings.bin"
+        private const val SEALED_SETTINGS_KEYSET_NAME = "secure_app_settings_keyset"
+        private const val TOKEN_JOURNAL_FILE_NAME = "server_tokens.journal"
+        private const val TOKEN_JOURNAL_KEYSET_NAME = "server_tokens_keyset"
+        // Followed by the time at which the file was moved aside
+        private const val UNREADABLE_FILE_SUFFIX = ".unreadable."
 
         private const val KEY_APP_SETTINGS = "app_settings"
         private const val KEY_PREFIX_SERVER_TOKEN = "server_token_"
 
         const val KEY_INSTANCE = "instance"
         const val KEY_VPN_PROTOCOL = "vpn_protocol"
+        private const val KEY_CONNECTED_SINCE_REALTIME = "connected_since_realtime"
+        private const val KEY_CONNECTED_BOOT_COUNT = "connected_boot_count"
         const val KEY_INSTANCE_LIST_PREFIX = "instance_list_"
 
         @Deprecated("")
@@ -69,27 +90,204 @@ class PreferencesService(
             KEY_INSTANCE_LIST_PREFIX + "institute_access"
 
         const val KEY_STORAGE_VERSION = "storage_version"
+
+        // Writes which happen within this window are persisted together in a single commit.
+        private const val PERSIST_DELAY_MS = 100L
+
+        // Marks a key which has been removed, but the removal was not persisted yet.
+        private val REMOVED = Any()
     }
 
     private val _serializerService: SerializerService = serializerService
 
-    private val securePreferences: SharedPreferences
+    private val contentResolver = applicationContext.contentResolver
+
+    // Not encrypted, only used for the storage version and values which are needed before the secure store is open.
+    private val insecurePreferences: SharedPreferences =
+        applicationContext.getSharedPreferences(KEY_OLD_PREFERENCES_NAME, Context.MODE_PRIVATE)
+
+    // Only written once, on the persist executor, before secureStoreReady completes.
+    private lateinit var secureStore: SettingsStore
+    private lateinit var tokenVault: TokenVault
+
+    // Opening the secure store requires the Android keystore, which is slow, so we do it in the background.
+    private val secureStoreReady = CompletableDeferred<Unit>()
+    private val secureStoreLatch = CountDownLatch(1)
+    @Volatile
+    private var secureStoreError: Exception? = null
+
+    // The protocol is needed to pick the VPN service on startup, so it is also kept in the insecure preferences.
+    @Volatile
+    private var currentProtocol: Int = insecurePreferences.getInt(KEY_VPN_PROTOCOL, Protocol.Unknown.nativeValue)
+
+    // In-memory copy of all the secure values, so reads do not need to decrypt anything.
+    private val snapshot = ConcurrentHashMap<String, Any>()
+
+    // The decoded value of KEY_INSTANCE. Null if it has not been decoded yet.
+    private val cachedCurrentInstance = AtomicReference<DecodedInstance?>(null)
+    private val currentInstanceLock = Any()
+
+    // Values which were written to the snapshot, but not persisted yet. Guarded by itself.
+    private val pendingWrites = LinkedHashMap<String, Any>()
+    // Held from taking the pending writes until they are in the secure store, so a clear can't be undone
+    // by older writes. Always taken before the lock of pendingWrites.
+    private val persistLock = Any()
+    private var persistScheduled = false
+    private val persistExecutor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
 
     init {
-        val insecurePreferences: SharedPreferences =
-            applicationContext.getSharedPreferences(KEY_OLD_PREFERENCES_NAME, Context.MODE_PRIVATE)
+        // This is the first task of the executor, so all persists are run after the store was opened.
+        persistExecutor.execute {
+            val startTime = SystemClock.elapsedRealtime()
+            try {
+                openSecureStore(applicationContext)
+            } catch (ex: Exception) {
+                Log.e(TAG, "Unable to open the secure preferences!", ex)
+                secureStoreError = ex
+            } finally {
+                StartupTimings.duration(StartupTimings.SECURE_STORE_OPENED, SystemClock.elapsedRealtime() - startTime)
+                StartupTimings.mark(StartupTimings.SECURE_STORE_OPENED)
+                secureStoreReady.complete(Unit)
+                secureStoreLatch.countDown()
+            }
+        }
+    }
+
+    private fun openSecureStore(applicationContext: Context) {
+        val settingsFile = File(applicationContext.filesDir, SEALED_SETTINGS_FILE_NAME)
+        val aead = createAeadOrReset(applicationContext, SEALED_SETTINGS_KEYSET_NAME, settingsFile)
+        secureStore = SealedBlobStore(settingsFile, aead)
+        try {
+            secureStore.readAll()
+        } catch (ex: IOException) {
+            // Without this, every later launch would fail on the same file
+            Log.e(TAG, "Unable to read the secure preferences, starting over with empty preferences.", ex)
+            moveAside(settingsFile)
+        }
+        val tokenFile = File(applicationContext.filesDir, TOKEN_JOURNAL_FILE_NAME)
+        val tokenAead = createAeadOrReset(applicationContext, TOKEN_JOURNAL_KEYSET_NAME, tokenFile)
+        tokenVault = TokenVault(tokenFile, tokenAead)
+        try {
+            tokenVault.serverIds()
+        } catch (ex: IOException) {
+            // The unreadable journal is kept next to the new one, so its tokens are not deleted
+            Log.e(TAG, "Unable to read the token vault, starting over without tokens.", ex)
+            moveAside(tokenFile)
+        }
+        migrateIfNeeded(insecurePreferences, applicationContext)
+        snapshot.putAll(secureStore.readAll())
+        // Older versions only stored the protocol in the secure preferences
+        val secureProtocol = snapshot[KEY_VPN_PROTOCOL] as? Int
+        if (secureProtocol != null && !insecurePreferences.contains(KEY_VPN_PROTOCOL)) {
+            currentProtocol = secureProtocol
+            insecurePreferences.edit().putInt(KEY_VPN_PROTOCOL, secureProtocol).apply()
+        }
+    }
+
+    /**
+     * Creates the primitive for a sealed file. If the keyset can not be used anymore, for example because
+     * the keystore key was lost, the keyset is deleted and the file sealed with it is moved aside. Then a new
+     * keyset is created.
+     */
+    private fun createAeadOrReset(applicationContext: Context, keysetName: String, sealedFile: File): Aead {
+        val error = try {
+            return SealedBlobStore.createAead(applicationContext, keysetName)
+        } catch (ex: GeneralSecurityException) {
+            ex
+        } catch (ex: IOException) {
+            ex
+        }
+        Log.e(TAG, "Unable to open keyset $keysetName, starting over without ${sealedFile.name}.", error)
+        SealedBlobStore.deleteKeyset(applicationContext, keysetName)
+        moveAside(sealedFile)
+        return SealedBlobStore.createAead(applicationContext, keysetName)
+    }
+
+    /**
+     * Moves a file which can not be read out of the way, without touching the ones moved aside before.
+     * The stores load as empty afterwards.
+     */
+    private fun moveAside(file: File) {
+        val target = File(file.path + UNREADABLE_FILE_SUFFIX + System.currentTimeMillis())
+        if (!file.renameTo(target)) {
+            Log.e(TAG, "Unable to move ${file.name} aside, deleting it.")
+            file.delete()
+        }
+    }
+
+    /**
+     * Opens the EncryptedSharedPreferences which were used to store the secure values up to storage version 5.
+     */
+    private fun openEncryptedPreferences(applicationContext: Context): SharedPreferences {
         val masterKey = MasterKey.Builder(applicationContext)
             .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
             .build()
-
-        securePreferences = EncryptedSharedPreferences.create(
+        return EncryptedSharedPreferences.create(
             applicationContext,
             KEY_SECURE_PREFERENCES_NAME,
             masterKey,
             EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
             EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
         )
-        migrateIfNeeded(insecurePreferences, applicationContext)
+    }
+
+    /**
+     * Reads all values of the EncryptedSharedPreferences. If they can not be opened, for example because
+     * the keystore master key was lost, the values are gone for good, so the migration continues without them.
+     */
+    private fun readEncryptedPreferences(applicationContext: Context): Map<String, Any> {
+        val error = try {
+            return EncryptedPreferencesStore(openEncryptedPreferences(applicationContext)).readAll()
+        } catch (ex: GeneralSecurityException) {
+            ex
+        } catch (ex: IOException) {
+            ex
+        } catch (ex: SecurityException) {
+            // Thrown by the preferences when a value can not be decrypted
+            ex
+        }
+        Log.e(TAG, "Unable to read the encrypted preferences, continuing without their values.", error)
+        return emptyMap()
+    }
+
+    /**
+     * Deletes a shared preferences file from the disk.
+     */
+    private fun deleteSharedPreferences(applicationContext: Context, preferenceName: String) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            applicationContext.deleteSharedPreferences(preferenceName)
+        } else {
+            val dataDir = applicationContext.filesDir.parent
+            if (dataDir != null) {
+                val file =
+                    File(dataDir + File.separator + "shared_prefs" + File.separator + preferenceName + ".xml")
+                try {
+                    file.delete()
+                } catch (e: IOException) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Suspends until the secure store has been opened. Coroutines should call this before accessing
+     * secure values, so that they do not block their thread while waiting.
+     */
+    suspend fun awaitSecureStore() {
+        secureStoreReady.await()
+    }
+
+    /**
+     * Blocks until the secure store has been opened.
+     */
+    private fun waitForSecureStore() {
+        if (secureStoreLatch.count != 0L) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                Log.w(TAG, "Waiting for the secure store on the main thread!")
+            }
+            secureStoreLatch.await()
+        }
+        secureStoreError?.let { throw IllegalStateException("Unable to open the secure preferences!", it) }
     }
 
     @SuppressLint("ApplySharedPref")
@@ -115,40 +313,42 @@ class PreferencesService(
             // Remove the old preference file used by com.scottyab:secure-preferences:
             // nl.eduvpn.app_preferences.xml or org.letsconnect_vpn.app_preferences.xml.
 
-            val preferenceName = BuildConfig.APPLICATION_ID + "_preferences"
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                applicationContext.deleteSharedPreferences(preferenceName)
-            } else {
-                val dataDir = applicationContext.filesDir.parent
-                if (dataDir != null) {
-                    val file =
-                        File(dataDir + File.separator + "shared_prefs" + File.separator + preferenceName + ".xml")
-                    try {
-                        file.delete()
-                    } catch (e: IOException) {
-                    }
-                }
+            deleteSharedPreferences(applicationContext, BuildConfig.APPLICATION_ID + "_preferences")
+        }
+        if (version < 6) {
+            // Move all values from the EncryptedSharedPreferences over to the sealed settings blob.
+            // The old file is only deleted after the blob has been committed, so a crash in between
+            // will just run this migration again.
+            val oldValues = readEncryptedPreferences(applicationContext)
+            secureStore.clear()
+            secureStore.write(oldValues)
+            insecurePreferences.edit().putInt(KEY_STORAGE_VERSION, 6).commit()
+            deleteSharedPreferences(applicationContext, KEY_SECURE_PREFERENCES_NAME)
+            if (Constants.DEBUG) {
+                Log.d(TAG, "Migrated ${oldValues.size} values over to the sealed settings store.")
+            }
+        }
+        if (version < 7) {
+            // Move the tokens over to the token vault. They are only removed from the settings store
+            // after the vault has been written, so a crash in between will just run this migration again.
+            val tokens = secureStore.readAll()
+                .filterKeys { it.startsWith(KEY_PREFIX_SERVER_TOKEN) }
+            tokenVault.update(tokens.entries.associate { (key, value) ->
+                key.removePrefix(KEY_PREFIX_SERVER_TOKEN) to value as? String
+            })
+            secureStore.write(tokens.mapValues { null })
+            if (Constants.DEBUG) {
+                Log.d(TAG, "Migrated ${tokens.size} tokens over to the token vault.")
             }
         }
         val editor = insecurePreferences.edit()
         editor.putInt(KEY_STORAGE_VERSION, STORAGE_VERSION)
         editor.commit()
         if (Constants.DEBUG) {
-            Log.d(TAG, "Migrated over to storage version v4.")
+            Log.d(TAG, "Migrated over to storage version v$STORAGE_VERSION.")
         }
     }
 
-    /**
-     * Returns the shared preferences to be used throughout this service.
-     *
-     * @return The preferences to be used.
-     */
-    @VisibleForTesting
-    fun getSharedPreferences(): SharedPreferences {
-        return securePreferences
-    }
-
     /**
      * Clears the shared preferences, but makes sure that the storage version key remains.
      * Only use this method to clear all data.
@@ -156,31 +356,98 @@ class PreferencesService(
     @SuppressLint("ApplySharedPref")
     @VisibleForTesting
     fun clearPreferences() {
-        securePreferences.edit()
-            .clear()
-            .putInt(KEY_STORAGE_VERSION, STORAGE_VERSION)
+        waitForSecureStore()
+        synchronized(currentInstanceLock) {
+            synchronized(persistLock) {
+                synchronized(pendingWrites) {
+                    cachedCurrentInstance.set(null)
+                    pendingWrites.clear()
+                    snapshot.clear()
+                }
+                secureStore.clear()
+                tokenVault.clearAll()
+            }
+        }
+        currentProtocol = Protocol.Unknown.nativeValue
+        insecurePreferences.edit()
+            .remove(KEY_VPN_PROTOCOL)
             .commit()
     }
 
+    /**
+     * Blocks until all the values written before this call are persisted.
+     */
+    @VisibleForTesting
+    fun flush() {
+        persistExecutor.submit { persistPendingWrites() }.get()
+    }
+
+    /**
+     * Updates the value in memory, and schedules it to be persisted in the background.
+     *
+     * @param key   The key of the preference.
+     * @param value The new value. Null removes the key.
+     */
+    private fun write(key: String, value: Any?) {
+        waitForSecureStore()
+        synchronized(pendingWrites) {
+            if (value == null) {
+                snapshot.remove(key)
+            } else {
+                snapshot[key] = value
+            }
+            pendingWrites[key] = value ?: REMOVED
+            if (!persistScheduled) {
+                persistScheduled = true
+                persistExecutor.schedule({ persistPendingWrites() }, PERSIST_DELAY_MS, TimeUnit.MILLISECONDS)
+            }
+        }
+    }
+
+    /**
+     * Persists all writes accumulated since the last run in a single commit.
+     */
+    private fun persistPendingWrites() {
+        synchronized(persistLock) {
+            val writes = synchronized(pendingWrites) {
+                persistScheduled = false
+                if (pendingWrites.isEmpty()) {
+                    return
+                }
+                val writes = LinkedHashMap(pendingWrites)
+                pendingWrites.clear()
+                writes
+            }
+            try {
+                secureStore.write(writes.mapValues { (_, value) -> value.takeUnless { it === REMOVED } })
+            } catch (ex: IOException) {
+                Log.e(TAG, "Unable to persist ${writes.size} values!", ex)
+            }
+        }
+    }
+
     /**
      * Saves the instance the app will connect to.
      *
      * @param instance The instance to save.
      */
     fun setCurrentInstance(instance: Instance?) {
-        try {
-            if (instance == null) {
-                getSharedPreferences().edit().remove(KEY_INSTANCE).apply()
-            } else {
-                getSharedPreferences().edit()
-                    .putString(
-                        KEY_INSTANCE,
-                        _serializerService.serializeInstance(instance).toString()
-                    )
-                    .apply()
+        synchronized(currentInstanceLock) {
+            val cached = cachedCurrentInstance.get()
+            if (cached != null && cached.instance == instance) {
+                // Same as the saved one, nothing to encode or write.
+                return
+            }
+            try {
+                if (instance == null) {
+                    write(KEY_INSTANCE, null)
+                } else {
+                    write(KEY_INSTANCE, _serializerService.serializeInstance(instance).toString())
+                }
+                cachedCurrentInstance.set(DecodedInstance(instance))
+            } catch (ex: SerializerService.UnknownFormatException) {
+                Log.e(TAG, "Can not save connection instance!", ex)
             }
-        } catch (ex: SerializerService.UnknownFormatException) {
-            Log.e(TAG, "Can not save connection instance!", ex)
         }
     }
 
@@ -190,35 +457,112 @@ class PreferencesService(
      * @return The instance to connect to. Null if none found.
      */
     fun getCurrentInstance(): Instance? {
-        val serializedInstance = getSharedPreferences().getString(KEY_INSTANCE, null)
-            ?: return null
-        return try {
-            _serializerService.deserializeInstance(serializedInstance)
-        } catch (ex: SerializerService.UnknownFormatException) {
-            Log.e(TAG, "Unable to deserialize instance!", ex)
-            null
+        cachedCurrentInstance.get()?.let { return it.instance }
+        waitForSecureStore()
+        // Decoded under the same lock as saving and clearing, so an outdated value is never cached
+        synchronized(currentInstanceLock) {
+            cachedCurrentInstance.get()?.let { return it.instance }
+            val serializedInstance = snapshot[KEY_INSTANCE] as? String
+            val instance = try {
+                serializedInstance?.let { _serializerService.deserializeInstance(it) }
+            } catch (ex: SerializerService.UnknownFormatException) {
+                Log.e(TAG, "Unable to deserialize instance!", ex)
+                null
+            }
+            cachedCurrentInstance.set(DecodedInstance(instance))
+            return instance
         }
     }
 
+    /**
+     * Saves the protocol of the current connection. This value is not secret, so it is stored in the
+     * insecure preferences, where it is available without waiting for the secure store.
+     */
     fun setCurrentProtocol(protocol: Int) {
-        getSharedPreferences().edit()
+        currentProtocol = protocol
+        insecurePreferences.edit()
             .putInt(KEY_VPN_PROTOCOL, protocol)
             .apply()
     }
 
     fun getCurrentProtocol(): Int {
-        return getSharedPreferences().getInt(KEY_VPN_PROTOCOL, Protocol.Unknown.nativeValue)
+        return currentProtocol
+    }
+
+    /**
+     * Saves when the current connection was established, as [SystemClock.elapsedRealtime], so the
+     * connection time survives the process being recreated while the tunnel stays up. This value is
+     * not secret, so it is stored in the insecure preferences.
+     *
+     * @param realtime The elapsed realtime at which the connection was established, or null when
+     * there is no connection.
+     */
+    fun setConnectedSinceRealtime(realtime: Long?) {
+        val editor = insecurePreferences.edit()
+        if (realtime == null) {
+            editor.remove(KEY_CONNECTED_SINCE_REALTIME)
+                .remove(KEY_CONNECTED_BOOT_COUNT)
+        } else {
+            editor.putLong(KEY_CONNECTED_SINCE_REALTIME, realtime)
+                .putInt(KEY_CONNECTED_BOOT_COUNT, bootCount())
+        }
+        editor.apply()
+    }
+
+    /**
+     * @return The elapsed realtime at which the current connection was established, or null if it
+     * was not saved, or saved before the device was restarted.
+     */
+    fun getConnectedSinceRealtime(): Long? {
+        if (!insecurePreferences.contains(KEY_CONNECTED_SINCE_REALTIME)) {
+            return null
+        }
+        val realtime = insecurePreferences.getLong(KEY_CONNECTED_SINCE_REALTIME, 0)
+        val savedBootCount = insecurePreferences.getInt(KEY_CONNECTED_BOOT_COUNT, -1)
+        if (realtime > SystemClock.elapsedRealtime() || savedBootCount != bootCount()) {
+            return null
+        }
+        return realtime
+    }
+
+    private fun bootCount(): Int {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            // Not available, a restart is then only noticed when the clock is behind the saved value
+            return -1
+        }
+        return Settings.Global.getInt(contentResolver, Settings.Global.BOOT_COUNT, -1)
     }
 
     fun getToken(serverId: String): String? {
-        return getSharedPreferences().getString(KEY_PREFIX_SERVER_TOKEN + serverId, null)
+        waitForSecureStore()
+        return try {
+            tokenVault.get(serverId)
+        } catch (ex: IOException) {
+            Log.e(TAG, "Unable to read the token vault!", ex)
+            null
+        }
     }
 
     fun setToken(serverId: String, token: String?) {
-        if (token.isNullOrEmpty()) {
-            getSharedPreferences().edit().remove(KEY_PREFIX_SERVER_TOKEN + serverId).apply()
-        } else {
-            getSharedPreferences().edit().putString(KEY_PREFIX_SERVER_TOKEN + serverId, token).apply()
+        setTokens(mapOf(serverId to token))
+    }
+
+    /**
+     * Saves the tokens of multiple servers in a single write.
+     *
+     * @param tokens The new tokens by server ID. A null or empty token removes the token of the server.
+     */
+    fun setTokens(tokens: Map<String, String?>) {
+        waitForSecureStore()
+        try {
+            tokenVault.update(tokens.mapValues { (_, token) -> token?.takeUnless { it.isEmpty() } })
+        } catch (ex: IOException) {
+            Log.e(TAG, "Unable to save ${tokens.size} tokens!", ex)
         }
     }
+
+    /**
+     * Wrapper for the decoded current instance, so that a saved null value can be cached as well.
+     */
+    private class DecodedInstance(val instance: Instance?)
 }
@@ -0,0 +1,241 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import android.annotation.SuppressLint
+import android.content.Context
+import androidx.security.crypto.MasterKey
+import com.google.crypto.tink.Aead
+import com.google.crypto.tink.KeyTemplates
+import com.google.crypto.tink.aead.AeadConfig
+import com.google.crypto.tink.integration.android.AndroidKeysetManager
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.security.GeneralSecurityException
+
+/**
+ * Settings store which keeps all values in a single binary blob, sealed with AES-GCM.
+ *
+ * Every commit writes the whole blob to a temporary file, syncs it to the disk, and renames it over
+ * the previous version. A crash during a commit therefore leaves either the old or the new version
+ * in place, never a partially written one.
+ *
+ * @param file The file to store the blob in.
+ * @param aead The primitive used to seal and open the blob.
+ */
+class SealedBlobStore(private val file: File, private val aead: Aead) : SettingsStore {
+
+    companion object {
+        // "EVPS" in ASCII
+        private const val MAGIC = 0x45565053
+        private const val FORMAT_VERSION = 1
+
+        private const val TYPE_STRING: Byte = 1
+        private const val TYPE_INT: Byte = 2
+        private const val TYPE_LONG: Byte = 3
+        private const val TYPE_BOOLEAN: Byte = 4
+
+        private const val TEMP_FILE_SUFFIX = ".tmp"
+
+        private const val KEYSET_PREFERENCES_NAME = "sealed_store_keysets"
+        private const val ANDROID_KEYSTORE_URI = "android-keystore://"
+
+        /**
+         * Creates the AES-GCM primitive for a sealed store. The keyset is stored encrypted with the
+         * app master key from the Android keystore, if the device supports it.
+         *
+         * @param context    The application context.
+         * @param keysetName The name of the keyset. Each store should use its own keyset.
+         */
+        @Throws(GeneralSecurityException::class, IOException::class)
+        fun createAead(context: Context, keysetName: String): Aead {
+            AeadConfig.register()
+            val masterKey = MasterKey.Builder(context)
+                .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
+                .build()
+            val builder = AndroidKeysetManager.Builder()
+                .withSharedPref(context, keysetName, KEYSET_PREFERENCES_NAME)
+                .withKeyTemplate(KeyTemplates.get("AES256_GCM"))
+            if (masterKey.isKeyStoreBacked) {
+                builder.withMasterKeyUri(ANDROID_KEYSTORE_URI + MasterKey.DEFAULT_MASTER_KEY_ALIAS)
+            }
+            return builder.build().keysetHandle.getPrimitive(Aead::class.java)
+        }
+
+        /**
+         * Deletes a keyset created by [createAead]. Everything sealed with it can not be opened anymore.
+         *
+         * @param context    The application context.
+         * @param keysetName The name of the keyset.
+         */
+        @SuppressLint("ApplySharedPref")
+        fun deleteKeyset(context: Context, keysetName: String) {
+            context.getSharedPreferences(KEYSET_PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .remove(keysetName)
+                .commit()
+        }
+    }
+
+    // The last committed state. Guarded by this.
+    private var values: MutableMap<String, Any>? = null
+
+    // Binds the ciphertext to this file, so blobs can not be swapped between stores.
+    private val associatedData = file.name.toByteArray(Charsets.UTF_8)
+
+    @Synchronized
+    override fun readAll(): Map<String, Any> {
+        return HashMap(loadedValues())
+    }
+
+    @Synchronized
+    override fun write(changes: Map<String, Any?>) {
+        val newValues = HashMap(loadedValues())
+        changes.forEach { (key, value) ->
+            if (value == null) {
+                newValues.remove(key)
+            } else {
+                newValues[key] = value
+            }
+        }
+        commit(newValues)
+        values = newValues
+    }
+
+    @Synchronized
+    override fun clear() {
+        val newValues = HashMap<String, Any>()
+        commit(newValues)
+        values = newValues
+    }
+
+    private fun loadedValues(): MutableMap<String, Any> {
+        values?.let { return it }
+        val loaded = load()
+        values = loaded
+        return loaded
+    }
+
+    private fun load(): MutableMap<String, Any> {
+        // A leftover temporary file means a commit was interrupted, the previous version is still valid.
+        File(file.path + TEMP_FILE_SUFFIX).delete()
+        if (!file.exists()) {
+            return HashMap()
+        }
+        val sealed = file.readBytes()
+        val input = DataInputStream(ByteArrayInputStream(sealed))
+        if (sealed.size < 5 || input.readInt() != MAGIC) {
+            throw IOException("Settings file ${file.name} has an unknown format!")
+        }
+        val formatVersion = input.readByte().toInt()
+        if (formatVersion != FORMAT_VERSION) {
+            throw IOException("Settings file ${file.name} has unsupported version $formatVersion!")
+        }
+        val plain = try {
+            aead.decrypt(sealed.copyOfRange(5, sealed.size), associatedData)
+        } catch (ex: GeneralSecurityException) {
+            throw IOException("Unable to open settings file ${file.name}!", ex)
+        }
+        return deserialize(plain)
+    }
+
+    private fun commit(newValues: Map<String, Any>) {
+        val sealed = try {
+            aead.encrypt(serialize(newValues), associatedData)
+        } catch (ex: GeneralSecurityException) {
+            throw IOException("Unable to seal settings file ${file.name}!", ex)
+        }
+        val tempFile = File(file.path + TEMP_FILE_SUFFIX)
+        FileOutputStream(tempFile).use { output ->
+            val header = DataOutputStream(output)
+            header.writeInt(MAGIC)
+            header.writeByte(FORMAT_VERSION)
+            header.write(sealed)
+            header.flush()
+            output.fd.sync()
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete()
+            throw IOException("Unable to commit settings file ${file.name}!")
+        }
+    }
+
+    private fun serialize(values: Map<String, Any>): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        val output = DataOutputStream(bytes)
+        output.writeInt(values.size)
+        values.forEach { (key, value) ->
+            writeString(output, key)
+            when (value) {
+                is String -> {
+                    output.writeByte(TYPE_STRING.toInt())
+                    writeString(output, value)
+                }
+                is Int -> {
+                    output.writeByte(TYPE_INT.toInt())
+                    output.writeInt(value)
+                }
+                is Long -> {
+                    output.writeByte(TYPE_LONG.toInt())
+                    output.writeLong(value)
+                }
+                is Boolean -> {
+                    output.writeByte(TYPE_BOOLEAN.toInt())
+                    output.writeBoolean(value)
+                }
+                else -> throw IOException("Unsupported value type ${value.javaClass.name} for key $key")
+            }
+        }
+        output.flush()
+        return bytes.toByteArray()
+    }
+
+    private fun deserialize(plain: ByteArray): MutableMap<String, Any> {
+        val input = DataInputStream(ByteArrayInputStream(plain))
+        val count = input.readInt()
+        val result = HashMap<String, Any>(count * 2)
+        repeat(count) {
+            val key = readString(input)
+            result[key] = when (val type = input.readByte()) {
+                TYPE_STRING -> readString(input)
+                TYPE_INT -> input.readInt()
+                TYPE_LONG -> input.readLong()
+                TYPE_BOOLEAN -> input.readBoolean()
+                else -> throw IOException("Unknown value type $type for key $key")
+            }
+        }
+        return result
+    }
+
+    // DataOutputStream.writeUTF is limited to 64 kB, which is not enough for all tokens
+    private fun writeString(output: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        output.writeInt(bytes.size)
+        output.write(bytes)
+    }
+
+    private fun readString(input: DataInputStream): String {
+        val bytes = ByteArray(input.readInt())
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+}
@@ -20,6 +20,7 @@ import kotlinx.serialization.SerializationException
 import kotlinx.serialization.json.Json
 import nl.eduvpn.app.entity.AddedServers
 import nl.eduvpn.app.entity.CertExpiryTimes
+import nl.eduvpn.app.entity.ConnectTraceList
 import nl.eduvpn.app.entity.CookieAndProfileMapData
 import nl.eduvpn.app.entity.CookieAndStringArrayData
 import nl.eduvpn.app.entity.CookieAndStringData
@@ -165,6 +166,24 @@ class SerializerService {
         }
     }
 
+    @Throws(UnknownFormatException::class)
+    fun serializeConnectTraces(traces: ConnectTraceList): String {
+        return try {
+            jsonSerializer.encodeToString(ConnectTraceList.serializer(), traces)
+        } catch (ex: SerializationException) {
+            throw UnknownFormatException(ex)
+        }
+    }
+
+    @Throws(UnknownFormatException::class)
+    fun deserializeConnectTraces(json: String): ConnectTraceList {
+        return try {
+            jsonSerializer.decodeFromString(ConnectTraceList.serializer(), json)
+        } catch (ex: SerializationException) {
+            throw UnknownFormatException(ex)
+        }
+    }
+
     companion object {
         private val jsonSerializer: Json = Json {
             ignoreUnknownKeys = true
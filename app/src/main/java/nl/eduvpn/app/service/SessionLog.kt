@@ -0,0 +1,204 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import nl.eduvpn.app.entity.SessionRecord
+import nl.eduvpn.app.utils.Log
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Append-only log of the VPN sessions which have ended.
+ *
+ * Every session is a record of a fixed size, so a record can be found by its index without reading
+ * the ones before it. When the log file gets too large, it replaces the previous log file, and a new
+ * log is started. The two files together hold a few thousand sessions.
+ *
+ * The log is read through a memory mapped [Reader], so listing the sessions does not load them all
+ * into the heap.
+ *
+ * @param directory The directory of the log files.
+ */
+class SessionLog(directory: File) {
+
+    companion object {
+        private val TAG = SessionLog::class.java.simpleName
+
+        // "EVPL" in ASCII
+        private const val MAGIC = 0x4556504C
+        private const val FORMAT_VERSION: Short = 1
+        private const val HEADER_SIZE = 8
+
+        const val RECORD_SIZE = 96
+        private const val SERVER_OFFSET = 40
+        const val MAX_SERVER_BYTES = RECORD_SIZE - SERVER_OFFSET
+
+        private const val MAX_FILE_SIZE = HEADER_SIZE + 1500 * RECORD_SIZE
+
+        private const val CURRENT_FILE_NAME = "session_log.bin"
+        private const val PREVIOUS_FILE_NAME = "session_log.1.bin"
+    }
+
+    private val currentFile = File(directory, CURRENT_FILE_NAME)
+    private val previousFile = File(directory, PREVIOUS_FILE_NAME)
+
+    /**
+     * Appends a session to the log.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun append(record: SessionRecord) {
+        if (currentFile.length() + RECORD_SIZE > MAX_FILE_SIZE) {
+            if (!currentFile.renameTo(previousFile)) {
+                throw IOException("Unable to rotate session log ${currentFile.name}!")
+            }
+        }
+        val buffer = ByteBuffer.allocate(RECORD_SIZE)
+        writeRecord(buffer, record)
+        buffer.flip()
+        RandomAccessFile(currentFile, "rw").use { file ->
+            val channel = file.channel
+            if (file.length() < HEADER_SIZE) {
+                val header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .putShort(FORMAT_VERSION)
+                    .putShort(RECORD_SIZE.toShort())
+                header.flip()
+                channel.write(header, 0)
+            }
+            // Drop a record which was only partially written when the app was killed
+            val end = HEADER_SIZE + recordCount(file.length()) * RECORD_SIZE.toLong()
+            if (file.length() != end) {
+                Log.w(TAG, "Dropping ${file.length() - end} bytes of an incomplete session record.")
+                file.setLength(end)
+            }
+            channel.write(buffer, end)
+            channel.force(false)
+        }
+    }
+
+    /**
+     * Maps the log files into memory. Sessions appended after opening the reader are not included.
+     * The mappings are released when the reader is garbage collected.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun openReader(): Reader {
+        return Reader(listOfNotNull(map(previousFile), map(currentFile)))
+    }
+
+    private fun map(file: File): ByteBuffer? {
+        if (!file.exists()) {
+            return null
+        }
+        RandomAccessFile(file, "r").use { input ->
+            val length = input.length()
+            if (length < HEADER_SIZE) {
+                return null
+            }
+            // The mapping stays valid after the channel is closed
+            val buffer = input.channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+            if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != FORMAT_VERSION || buffer.getShort(6).toInt() != RECORD_SIZE) {
+                Log.w(TAG, "Ignoring session log ${file.name} with an unknown format.")
+                return null
+            }
+            return buffer
+        }
+    }
+
+    private fun recordCount(fileLength: Long): Int {
+        return ((fileLength - HEADER_SIZE).coerceAtLeast(0) / RECORD_SIZE).toInt()
+    }
+
+    private fun writeRecord(buffer: ByteBuffer, record: SessionRecord) {
+        val serverBytes = truncateUtf8(record.server, MAX_SERVER_BYTES - 1)
+        buffer.putLong(record.startedAt)
+            .putLong(record.durationMillis)
+            .putLong(record.bytesIn)
+            .putLong(record.bytesOut)
+            .putInt(record.protocol)
+            .put(record.outcome.toByte())
+            .put(record.failOver.toByte())
+            .putShort(0) // Reserved
+        buffer.put(serverBytes.size.toByte())
+        buffer.put(serverBytes)
+        // The rest of the record stays zero
+        buffer.position(RECORD_SIZE)
+    }
+
+    private fun truncateUtf8(value: String, maxBytes: Int): ByteArray {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        if (bytes.size <= maxBytes) {
+            return bytes
+        }
+        var length = maxBytes
+        // Do not cut a multibyte character in half
+        while (length > 0 && (bytes[length].toInt() and 0xC0) == 0x80) {
+            length--
+        }
+        return bytes.copyOf(length)
+    }
+
+    /**
+     * Reads the sessions of the log, newest first.
+     */
+    inner class Reader internal constructor(private val buffers: List<ByteBuffer>) {
+
+        // The number of records in each buffer, in the same order
+        private val counts = buffers.map { recordCount(it.capacity().toLong()) }
+
+        val size: Int = counts.sum()
+
+        /**
+         * @param index The index of the session, where 0 is the newest one.
+         */
+        fun get(index: Int): SessionRecord {
+            if (index < 0 || index >= size) {
+                throw IndexOutOfBoundsException("Session $index of $size")
+            }
+            var remaining = size - 1 - index
+            var bufferIndex = 0
+            while (remaining >= counts[bufferIndex]) {
+                remaining -= counts[bufferIndex]
+                bufferIndex++
+            }
+            return readRecord(buffers[bufferIndex], HEADER_SIZE + remaining * RECORD_SIZE)
+        }
+
+        private fun readRecord(buffer: ByteBuffer, offset: Int): SessionRecord {
+            val serverLength = (buffer.get(offset + SERVER_OFFSET).toInt() and 0xFF)
+                .coerceAtMost(MAX_SERVER_BYTES - 1)
+            val serverBytes = ByteArray(serverLength)
+            for (i in 0 until serverLength) {
+                serverBytes[i] = buffer.get(offset + SERVER_OFFSET + 1 + i)
+            }
+            return SessionRecord(
+                startedAt = buffer.getLong(offset),
+                durationMillis = buffer.getLong(offset + 8),
+                bytesIn = buffer.getLong(offset + 16),
+                bytesOut = buffer.getLong(offset + 24),
+                protocol = buffer.getInt(offset + 32),
+                outcome = buffer.get(offset + 36).toInt(),
+                failOver = buffer.get(offset + 37).toInt(),
+                server = String(serverBytes, Charsets.UTF_8)
+            )
+        }
+    }
+}
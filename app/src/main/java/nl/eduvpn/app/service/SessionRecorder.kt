@@ -0,0 +1,147 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import android.os.SystemClock
+import androidx.annotation.MainThread
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import nl.eduvpn.app.entity.SessionRecord
+import nl.eduvpn.app.livedata.ByteCount
+import nl.eduvpn.app.utils.Log
+import java.util.concurrent.Executors
+
+/**
+ * Follows the status of the VPN service, and writes a record to the session log when a session ends.
+ */
+class SessionRecorder(
+    private val sessionLog: SessionLog,
+    private val preferencesService: PreferencesService
+) {
+
+    companion object {
+        private val TAG = SessionRecorder::class.java.simpleName
+    }
+
+    private class Session(
+        val startedAt: Long,
+        val startRealtime: Long,
+        val protocol: Int,
+        val server: String
+    )
+
+    // Appends happen in order, away from the main thread.
+    private val writeExecutor = Executors.newSingleThreadExecutor()
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main.immediate)
+
+    private var vpnService: VPNService? = null
+    private var statusJob: Job? = null
+    private var session: Session? = null
+    private var lastSequence = 0L
+
+    @Volatile
+    private var failOver = SessionRecord.FAIL_OVER_NOT_STARTED
+
+    /**
+     * Starts following a VPN service which is about to connect.
+     */
+    @MainThread
+    fun attach(service: VPNService) {
+        if (session == null) {
+            failOver = SessionRecord.FAIL_OVER_NOT_STARTED
+        }
+        if (vpnService === service) {
+            return
+        }
+        vpnService?.let { previousService ->
+            endSession(previousService, SessionRecord.OUTCOME_DISCONNECTED)
+            statusJob?.cancel()
+        }
+        vpnService = service
+        lastSequence = service.statusFlow.value.sequence
+        statusJob = scope.launch {
+            service.statusFlow.collect { update -> onStatusChanged(service, update) }
+        }
+    }
+
+    /**
+     * Call this when failover detection has started for the current connection.
+     */
+    fun onFailOverStarted() {
+        failOver = SessionRecord.FAIL_OVER_NOT_NEEDED
+    }
+
+    /**
+     * Call this when failover detection found that the current connection does not work.
+     */
+    fun onFailOverNeeded() {
+        failOver = SessionRecord.FAIL_OVER_NEEDED
+    }
+
+    private fun onStatusChanged(service: VPNService, update: VPNService.StatusUpdate) {
+        val status = update.status
+        // The status flow is conflated. When statuses were skipped while connected, the session
+        // has ended in between, even if the latest status is connected again. How it ended is not
+        // known, and the byte counts already belong to the new session.
+        if (update.sequence > lastSequence + 1 && status == VPNService.VPNStatus.CONNECTED) {
+            endSession(service, SessionRecord.OUTCOME_UNKNOWN, byteCount = null)
+        }
+        lastSequence = update.sequence
+        when (status) {
+            VPNService.VPNStatus.CONNECTED -> if (session == null) {
+                session = Session(
+                    System.currentTimeMillis(),
+                    SystemClock.elapsedRealtime(),
+                    preferencesService.getCurrentProtocol(),
+                    preferencesService.getCurrentInstance()?.baseURI ?: ""
+                )
+            }
+            VPNService.VPNStatus.DISCONNECTED -> endSession(service, SessionRecord.OUTCOME_DISCONNECTED)
+            VPNService.VPNStatus.FAILED -> endSession(service, SessionRecord.OUTCOME_FAILED)
+            else -> Unit
+        }
+    }
+
+    /**
+     * @param byteCount The byte counts of the session which has ended, or null if they are unknown.
+     */
+    private fun endSession(service: VPNService, outcome: Int, byteCount: ByteCount? = service.lastByteCount()) {
+        val endedSession = session ?: return
+        session = null
+        val record = SessionRecord(
+            startedAt = endedSession.startedAt,
+            durationMillis = SystemClock.elapsedRealtime() - endedSession.startRealtime,
+            bytesIn = byteCount?.bytesIn ?: -1,
+            bytesOut = byteCount?.bytesOut ?: -1,
+            protocol = endedSession.protocol,
+            outcome = outcome,
+            failOver = failOver,
+            server = endedSession.server
+        )
+        writeExecutor.execute {
+            try {
+                sessionLog.append(record)
+            } catch (ex: Exception) {
+                Log.w(TAG, "Unable to write the session to the session log.", ex)
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import android.annotation.SuppressLint
+import android.content.SharedPreferences
+import java.io.IOException
+
+/**
+ * Storage engine for the settings kept by the preferences service.
+ * Values can be of the type String, Int, Long or Boolean.
+ */
+interface SettingsStore {
+
+    /**
+     * Loads all the stored values.
+     *
+     * @return The stored values by their key.
+     */
+    @Throws(IOException::class)
+    fun readAll(): Map<String, Any>
+
+    /**
+     * Persists a batch of changes at once.
+     *
+     * @param changes The new values by their key. A null value removes the key.
+     */
+    @Throws(IOException::class)
+    fun write(changes: Map<String, Any?>)
+
+    /**
+     * Removes all the stored values.
+     */
+    @Throws(IOException::class)
+    fun clear()
+}
+
+/**
+ * Settings store which keeps each value as a separately encrypted entry in EncryptedSharedPreferences.
+ * This was the only storage engine before storage version 6.
+ */
+class EncryptedPreferencesStore(private val preferences: SharedPreferences) : SettingsStore {
+
+    override fun readAll(): Map<String, Any> {
+        val result = HashMap<String, Any>()
+        preferences.all.forEach { (key, value) ->
+            if (value != null) {
+                result[key] = value
+            }
+        }
+        return result
+    }
+
+    override fun write(changes: Map<String, Any?>) {
+        val editor = preferences.edit()
+        changes.forEach { (key, value) ->
+            when (value) {
+                null -> editor.remove(key)
+                is String -> editor.putString(key, value)
+                is Int -> editor.putInt(key, value)
+                is Long -> editor.putLong(key, value)
+                is Boolean -> editor.putBoolean(key, value)
+                else -> throw IOException("Unsupported value type ${value.javaClass.name} for key $key")
+            }
+        }
+        editor.apply()
+    }
+
+    @SuppressLint("ApplySharedPref")
+    override fun clear() {
+        preferences.edit().clear().commit()
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import androidx.annotation.MainThread
+import androidx.lifecycle.LiveData
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+/**
+ * App-wide ticker which ticks on the main thread at every whole second of the wall clock.
+ *
+ * The next delay is calculated from the clock at every tick, so the ticks do not drift. Everything
+ * which ticks each second, such as the connection time on screen, wakes up at the same moment.
+ * The ticker only runs while it has at least one subscription.
+ *
+ * @param scope             The scope which runs the ticks, on the main thread by default.
+ * @param currentTimeMillis The wall clock.
+ */
+class Ticker(
+    private val scope: CoroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.Main),
+    private val currentTimeMillis: () -> Long = System::currentTimeMillis
+) {
+
+    companion object {
+        const val TICK_INTERVAL_MS = 1_000L
+    }
+
+    fun interface Listener {
+        /**
+         * @param timeMillis The wall clock time of the tick, rounded to a whole second.
+         */
+        fun onTick(timeMillis: Long)
+    }
+
+    /**
+     * A subscription to the ticks. The listener is not called anymore after it has been cancelled.
+     */
+    inner class Subscription internal constructor(internal val listener: Listener) {
+        @Volatile
+        internal var isCancelled = false
+
+        fun cancel() {
+            isCancelled = true
+            unsubscribe(this)
+        }
+    }
+
+    private val subscriptions = ArrayList<Subscription>()
+    private var job: Job? = null
+
+    // Copy of the subscriptions which is replaced when they change, so delivering a tick does not allocate
+    @Volatile
+    private var delivered = emptyArray<Subscription>()
+
+    /**
+     * Calls the listener on the main thread at every tick, until the subscription is cancelled.
+     */
+    fun subscribe(listener: Listener): Subscription {
+        val subscription = Subscription(listener)
+        synchronized(subscriptions) {
+            subscriptions.add(subscription)
+            delivered = subscriptions.toTypedArray()
+            if (job == null) {
+                job = scope.launch { tick() }
+            }
+        }
+        return subscription
+    }
+
+    /**
+     * Suspends until the given number of ticks have passed, so work which runs at a longer interval
+     * happens at the same moments as the ticks. Runs in the context of the caller, without subscribing.
+     */
+    suspend fun delayUntilTick(ticks: Long = 1) {
+        delay(ticks * TICK_INTERVAL_MS - Math.floorMod(currentTimeMillis(), TICK_INTERVAL_MS))
+    }
+
+    /**
+     * A live data which emits at every tick, and once when it becomes active. It is only subscribed
+     * while it has active observers.
+     */
+    fun asLiveData(): LiveData<Unit> = object : LiveData<Unit>() {
+        private var subscription: Subscription? = null
+
+        override fun onActive() {
+            value = Unit
+            subscription = subscribe { value = Unit }
+        }
+
+        override fun onInactive() {
+            subscription?.cancel()
+            subscription = null
+        }
+    }
+
+    private fun unsubscribe(subscription: Subscription) {
+        synchronized(subscriptions) {
+            subscriptions.remove(subscription)
+            delivered = subscriptions.toTypedArray()
+            if (subscriptions.isEmpty()) {
+                job?.cancel()
+                job = null
+            }
+        }
+    }
+
+    @MainThread
+    private suspend fun tick() {
+        while (true) {
+            delayUntilTick()
+            val time = currentTimeMillis() / TICK_INTERVAL_MS * TICK_INTERVAL_MS
+            // A listener may cancel its own or another subscription while the ticks are delivered
+            val current = delivered
+            for (i in current.indices) {
+                if (!current[i].isCancelled) {
+                    current[i].listener.onTick(time)
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import com.google.crypto.tink.Aead
+import nl.eduvpn.app.utils.Log
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.security.GeneralSecurityException
+
+/**
+ * Stores the OAuth tokens of the servers.
+ *
+ * All tokens are kept in memory. Changes are appended to a journal file as a single sealed record
+ * per batch, so updating or removing the tokens of many servers at once is one small write.
+ * When the journal has grown too long, it is compacted into a single record holding all the tokens.
+ *
+ * Each record is sealed with AES-GCM, with its position in the journal as associated data, so records
+ * can not be reordered or replayed. A record which was only partially written when the app crashed
+ * is cut off the journal on the next load. A complete record which fails to open is skipped, but left
+ * in the journal.
+ *
+ * @param file The journal file.
+ * @param aead The primitive used to seal and open the records.
+ */
+class TokenVault(private val file: File, private val aead: Aead) {
+
+    companion object {
+        private val TAG = TokenVault::class.java.simpleName
+
+        // "EVPT" in ASCII
+        private const val MAGIC = 0x45565054
+        private const val FORMAT_VERSION = 1
+        private const val HEADER_SIZE = 5
+
+        private const val FLAG_CLEAR_ALL = 1
+
+        // The journal is compacted when it has more records than this.
+        private const val MAX_JOURNAL_RECORDS = 32
+
+        private const val TEMP_FILE_SUFFIX = ".tmp"
+    }
+
+    // The current tokens by server ID. Guarded by this.
+    private var tokens: MutableMap<String, String>? = null
+
+    // Number of records in the journal file. Guarded by this.
+    private var recordCount = 0
+
+    private val fileNameBytes = file.name.toByteArray(Charsets.UTF_8)
+
+    /**
+     * @param serverId The ID of the server.
+     * @return The token of the server, or null if there is none.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun get(serverId: String): String? {
+        return loadedTokens()[serverId]
+    }
+
+    /**
+     * @return The IDs of all the servers which have a token.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun serverIds(): Set<String> {
+        return HashSet(loadedTokens().keys)
+    }
+
+    /**
+     * Saves the tokens of one or more servers in a single journal record.
+     *
+     * @param changes The new tokens by server ID. A null value removes the token of the server.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun update(changes: Map<String, String?>) {
+        val current = loadedTokens()
+        val effective = changes.filter { (serverId, token) -> current[serverId] != token }
+        if (effective.isEmpty()) {
+            return
+        }
+        if (recordCount >= MAX_JOURNAL_RECORDS) {
+            val newTokens = HashMap(current)
+            applyChanges(newTokens, effective)
+            compact(newTokens)
+            tokens = newTokens
+        } else {
+            append(serializeRecord(false, effective))
+            applyChanges(current, effective)
+        }
+    }
+
+    /**
+     * Removes all the tokens.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun clearAll() {
+        compact(emptyMap())
+        tokens = HashMap()
+    }
+
+    private fun applyChanges(target: MutableMap<String, String>, changes: Map<String, String?>) {
+        changes.forEach { (serverId, token) ->
+            if (token == null) {
+                target.remove(serverId)
+            } else {
+                target[serverId] = token
+            }
+        }
+    }
+
+    private fun loadedTokens(): MutableMap<String, String> {
+        tokens?.let { return it }
+        val loaded = load()
+        tokens = loaded
+        return loaded
+    }
+
+    private fun load(): MutableMap<String, String> {
+        // A leftover temporary file means a compaction was interrupted, the journal is still valid.
+        File(file.path + TEMP_FILE_SUFFIX).delete()
+        recordCount = 0
+        val result = HashMap<String, String>()
+        if (!file.exists()) {
+            return result
+        }
+        val journal = file.readBytes()
+        val input = DataInputStream(ByteArrayInputStream(journal))
+        if (journal.size < HEADER_SIZE || input.readInt() != MAGIC) {
+            throw IOException("Token journal ${file.name} has an unknown format!")
+        }
+        val formatVersion = input.readByte().toInt()
+        if (formatVersion != FORMAT_VERSION) {
+            throw IOException("Token journal ${file.name} has unsupported version $formatVersion!")
+        }
+        var validLength = HEADER_SIZE
+        var unreadableRecords = 0
+        while (validLength < journal.size) {
+            val sealed = try {
+                val length = input.readInt()
+                if (length <= 0 || length > journal.size - validLength - 4) {
+                    break
+                }
+                ByteArray(length).also { input.readFully(it) }
+            } catch (ex: EOFException) {
+                break
+            }
+            validLength += 4 + sealed.size
+            try {
+                readRecord(aead.decrypt(sealed, associatedData(recordCount)), result)
+            } catch (ex: GeneralSecurityException) {
+                Log.e(TAG, "Unable to open record $recordCount of the token journal, skipping it.", ex)
+                unreadableRecords++
+            }
+            recordCount++
+        }
+        if (unreadableRecords > 0 && unreadableRecords == recordCount) {
+            // Most likely the keyset is unusable. The journal is left as it is, the owner decides what to do with it.
+            throw IOException("Unable to open any of the $recordCount records of token journal ${file.name}!")
+        }
+        if (validLength < journal.size) {
+            Log.w(TAG, "Dropping ${journal.size - validLength} bytes of an incomplete record from the token journal.")
+            RandomAccessFile(file, "rw").use { it.setLength(validLength.toLong()) }
+        }
+        return result
+    }
+
+    private fun append(plainRecord: ByteArray) {
+        if (!file.exists()) {
+            compact(loadedTokens())
+        }
+        val sealed = seal(plainRecord, recordCount)
+        FileOutputStream(file, true).use { output ->
+            val record = DataOutputStream(output)
+            record.writeInt(sealed.size)
+            record.write(sealed)
+            record.flush()
+            output.fd.sync()
+        }
+        recordCount++
+    }
+
+    /**
+     * Replaces the journal with one holding a single record with all the tokens.
+     */
+    private fun compact(newTokens: Map<String, String>) {
+        val sealed = seal(serializeRecord(true, newTokens), 0)
+        val tempFile = File(file.path + TEMP_FILE_SUFFIX)
+        FileOutputStream(tempFile).use { output ->
+            val journal = DataOutputStream(output)
+            journal.writeInt(MAGIC)
+            journal.writeByte(FORMAT_VERSION)
+            journal.writeInt(sealed.size)
+            journal.write(sealed)
+            journal.flush()
+            output.fd.sync()
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete()
+            throw IOException("Unable to compact token journal ${file.name}!")
+        }
+        recordCount = 1
+    }
+
+    private fun seal(plainRecord: ByteArray, index: Int): ByteArray {
+        return try {
+            aead.encrypt(plainRecord, associatedData(index))
+        } catch (ex: GeneralSecurityException) {
+            throw IOException("Unable to seal token journal record!", ex)
+        }
+    }
+
+    private fun associatedData(index: Int): ByteArray {
+        return ByteBuffer.allocate(fileNameBytes.size + 4)
+            .put(fileNameBytes)
+            .putInt(index)
+            .array()
+    }
+
+    private fun serializeRecord(clearAll: Boolean, changes: Map<String, String?>): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        val output = DataOutputStream(bytes)
+        output.writeByte(if (clearAll) FLAG_CLEAR_ALL else 0)
+        output.writeInt(changes.size)
+        changes.forEach { (serverId, token) ->
+            writeString(output, serverId)
+            output.writeBoolean(token != null)
+            if (token != null) {
+                writeString(output, token)
+            }
+        }
+        output.flush()
+        return bytes.toByteArray()
+    }
+
+    private fun readRecord(plain: ByteArray, target: MutableMap<String, String>) {
+        val input = DataInputStream(ByteArrayInputStream(plain))
+        if (input.readByte().toInt() and FLAG_CLEAR_ALL != 0) {
+            target.clear()
+        }
+        repeat(input.readInt()) {
+            val serverId = readString(input)
+            if (input.readBoolean()) {
+                target[serverId] = readString(input)
+            } else {
+                target.remove(serverId)
+            }
+        }
+    }
+
+    private fun writeString(output: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        output.writeInt(bytes.size)
+        output.write(bytes)
+    }
+
+    private fun readString(input: DataInputStream): String {
+        val bytes = ByteArray(input.readInt())
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+}
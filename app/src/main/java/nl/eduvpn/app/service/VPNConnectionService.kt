@@ -1,34 +1,59 @@
 package nl.eduvpn.app.service
 
 import android.app.Activity
+import android.app.Notification
 import android.app.NotificationManager
 import android.app.PendingIntent
 import android.content.Context
 import android.content.Intent
+import android.os.SystemClock
 import androidx.core.app.NotificationCompat
-import androidx.lifecycle.Observer
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import nl.eduvpn.app.Constants
 import nl.eduvpn.app.DisconnectVPNBroadcastReceiver
 import nl.eduvpn.app.MainActivity
 import nl.eduvpn.app.R
 import nl.eduvpn.app.entity.VPNConfig
+import nl.eduvpn.app.livedata.Throughput
 import nl.eduvpn.app.utils.FormattingUtils
 import nl.eduvpn.app.utils.Log
 import nl.eduvpn.app.utils.pendingIntentImmutableFlag
 import org.eduvpn.common.Protocol
 
+/**
+ * @param notificationUpdateIntervalMillis The minimum time between two updates of the transfer rates
+ * in the notification. Status changes are always shown right away.
+ */
 class VPNConnectionService(
     private val preferencesService: PreferencesService,
     private val eduVPNOpenVPNService: EduVPNOpenVPNService,
     private val wireGuardService: WireGuardService,
-    private val applicationContext: Context
+    private val connectionTracer: ConnectionTracer,
+    private val sessionRecorder: SessionRecorder,
+    private val applicationContext: Context,
+    private val notificationUpdateIntervalMillis: Long = DEFAULT_NOTIFICATION_UPDATE_INTERVAL_MS
 ) {
     private val notificationID = Constants.VPN_CONNECTION_NOTIFICATION_ID
 
-    private var statusObserver: Observer<VPNService.VPNStatus>? = null
+    private var statusJob: Job? = null
+
+    // Reused for every update of the notification, only the title and text change.
+    private val notificationBuilder by lazy { createNotificationBuilder(applicationContext) }
+
+    private val notificationScope = CoroutineScope(SupervisorJob() + Dispatchers.Main)
+    private var throughputJob: Job? = null
+    // Shows the latest transfer rates once the update interval has passed. Null if no update is pending.
+    private var throughputUpdateJob: Job? = null
+    private var latestThroughput: Throughput? = null
+    private var lastNotificationTitle: String? = null
+    private var lastNotificationText: String? = null
+    private var lastNotificationRealtime = 0L
 
     private var pendingWireguardConfig: VPNConfig.WireGuard? = null
 
@@ -37,15 +62,18 @@ class VPNConnectionService(
         activity: Activity
     ) : Boolean {
         val config = pendingWireguardConfig?.config ?: return false
+        connectionTracer.endSpan(ConnectionTracer.SPAN_PROXYGUARD)
         scope.launch {
-            wireGuardService.connect(activity, config, proxyGuardEnabled = true)
+            startTunnel {
+                wireGuardService.connect(activity, config, proxyGuardEnabled = true)
+            }
         }
         return true
     }
 
     fun disconnect(context: Context, vpnService: VPNService) {
         vpnService.disconnect()
-        removeVPNNotification(context, vpnService)
+        removeVPNNotification(context)
     }
 
     fun connectionToConfig(
@@ -56,43 +84,50 @@ class VPNConnectionService(
     ): VPNService {
         val vpnService = when (vpnConfig) {
             is VPNConfig.OpenVPN -> {
-                eduVPNOpenVPNService.connect(activity, vpnConfig.profile, preferTcp)
+                startTunnel {
+                    eduVPNOpenVPNService.connect(activity, vpnConfig.profile, preferTcp)
+                }
                 eduVPNOpenVPNService
             }
             is VPNConfig.WireGuard -> {
                 if (preferencesService.getCurrentProtocol() == Protocol.WireGuardWithTCP.nativeValue) {
                     Log.i(TAG, "Setting config to pending while ProxyGuard is connecting...")
                     pendingWireguardConfig = vpnConfig
+                    connectionTracer.beginSpan(ConnectionTracer.SPAN_PROXYGUARD)
                 } else {
                     scope.launch {
-                        wireGuardService.connect(activity, vpnConfig.config, proxyGuardEnabled = false)
+                        startTunnel {
+                            wireGuardService.connect(activity, vpnConfig.config, proxyGuardEnabled = false)
+                        }
                     }
                 }
                 wireGuardService
             }
         }
-        val observer: Observer<VPNService.VPNStatus> = Observer { vpnStatus ->
-            showVPNNotification(applicationContext, vpnService, vpnStatus)
+        sessionRecorder.attach(vpnService)
+        // The new service has to be put in the foreground, even if the notification looks the same
+        lastNotificationText = null
+        statusJob?.cancel()
+        // Undispatched, so the current status is shown right away
+        statusJob = notificationScope.launch(start = CoroutineStart.UNDISPATCHED) {
+            vpnService.statusFlow.collect { update ->
+                connectionTracer.onStatusChanged(update.status)
+                showVPNNotification(applicationContext, vpnService, update.status)
+                followThroughput(vpnService, update.status)
+            }
         }
-        vpnService.observeForever(observer)
-        observer.onChanged(vpnService.getStatus())
-        statusObserver = observer
         return vpnService
     }
 
+    /**
+     * Traces starting the tunnel, and the time until the tunnel reports that it is connected.
+     */
+    private inline fun startTunnel(block: () -> Unit) {
+        connectionTracer.span(ConnectionTracer.SPAN_START_TUNNEL, block)
+        connectionTracer.beginSpan(ConnectionTracer.SPAN_TUNNEL_CONNECTING)
+    }
 
-    private fun showVPNNotification(
-        context: Context,
-        vpnService: VPNService,
-        vpnStatus: VPNService.VPNStatus
-    ) {
-        val configName = FormattingUtils.formatProfileName(
-            context,
-            preferencesService.getCurrentInstance()!!,
-            null
-        )
-        val channelID = Constants.VPN_CONNECTION_NOTIFICATION_CHANNEL_ID
-
+    private fun createNotificationBuilder(context: Context): NotificationCompat.Builder {
         val disconnectVPNIntent = Intent(context, DisconnectVPNBroadcastReceiver::class.java)
             .setAction(DisconnectVPNBroadcastReceiver.ACTION)
         val disconnectVPNPendingIntent =
@@ -102,12 +137,9 @@ class VPNConnectionService(
                 disconnectVPNIntent,
                 pendingIntentImmutableFlag
             )
-
-        val notification = NotificationCompat.Builder(context, channelID)
+        return NotificationCompat.Builder(context, Constants.VPN_CONNECTION_NOTIFICATION_CHANNEL_ID)
             .setSmallIcon(R.drawable.logo_black)
             .setUsesChronometer(true)
-            .setContentTitle(configName)
-            .setContentText(context.getString(vpnStatusToStringID(vpnStatus)))
             .setContentIntent(
                 PendingIntent.getActivity(
                     context,
@@ -118,24 +150,113 @@ class VPNConnectionService(
             )
             .setAutoCancel(false)
             .setOngoing(true)
+            .setOnlyAlertOnce(true)
             .setPriority(NotificationCompat.PRIORITY_LOW) // Only used on Android <= 7.1
             .addAction(
                 de.blinkt.openvpn.R.drawable.ic_menu_close_clear_cancel,
                 context.getString(de.blinkt.openvpn.R.string.cancel_connection), disconnectVPNPendingIntent
             )
-            .build()
+    }
+
+    private fun showVPNNotification(
+        context: Context,
+        vpnService: VPNService,
+        vpnStatus: VPNService.VPNStatus
+    ) {
+        val configName = FormattingUtils.formatProfileName(
+            context,
+            preferencesService.getCurrentInstance()!!,
+            null
+        )
+        val text = context.getString(vpnStatusToStringID(vpnStatus))
+        if (text == lastNotificationText && configName == lastNotificationTitle) {
+            return
+        }
+        lastNotificationTitle = configName
+        // The builder is reused, so the chronometer has to be restarted for every new status
+        notificationBuilder.setContentTitle(configName)
+            .setWhen(System.currentTimeMillis())
+        val notification = postNotification(context, text)
+        vpnService.startForeground(notificationID, notification)
+    }
 
+    /**
+     * Shows the transfer rates in the notification while the VPN is connected.
+     */
+    private fun followThroughput(vpnService: VPNService, vpnStatus: VPNService.VPNStatus) {
+        if (vpnStatus != VPNService.VPNStatus.CONNECTED) {
+            stopFollowingThroughput()
+            return
+        }
+        if (throughputJob != null) {
+            return
+        }
+        throughputJob = notificationScope.launch {
+            vpnService.throughputFlow.collect { throughput ->
+                showThroughput(applicationContext, throughput)
+            }
+        }
+    }
+
+    private fun stopFollowingThroughput() {
+        throughputJob?.cancel()
+        throughputJob = null
+        throughputUpdateJob?.cancel()
+        throughputUpdateJob = null
+        latestThroughput = null
+    }
+
+    /**
+     * Shows the transfer rates, at most once per update interval. An update within the interval is
+     * postponed until the end of it, so the last rates are always shown, even if they do not change anymore.
+     */
+    private fun showThroughput(context: Context, throughput: Throughput) {
+        latestThroughput = throughput
+        if (throughputUpdateJob != null) {
+            // The pending update will show these rates
+            return
+        }
+        val waitMillis = lastNotificationRealtime + notificationUpdateIntervalMillis - SystemClock.elapsedRealtime()
+        if (waitMillis <= 0) {
+            postThroughput(context, throughput)
+            return
+        }
+        throughputUpdateJob = notificationScope.launch {
+            delay(waitMillis)
+            throughputUpdateJob = null
+            latestThroughput?.let { postThroughput(context, it) }
+        }
+    }
+
+    private fun postThroughput(context: Context, throughput: Throughput) {
+        val text = context.getString(
+            R.string.notification_connected_with_rates,
+            context.getString(R.string.connection_info_state_connected),
+            FormattingUtils.formatBytesTraffic(context, throughput.smoothedDownloadRate),
+            FormattingUtils.formatBytesTraffic(context, throughput.smoothedUploadRate)
+        )
+        if (text != lastNotificationText) {
+            postNotification(context, text)
+        }
+    }
+
+    private fun postNotification(context: Context, text: String): Notification {
+        val notification = notificationBuilder
+            .setContentText(text)
+            .build()
         val notificationManager =
             context.getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
-
-        // Prevent recreating the notification in case we just removed it
         notificationManager.notify(notificationID, notification)
-        vpnService.startForeground(notificationID, notification)
+        lastNotificationText = text
+        lastNotificationRealtime = SystemClock.elapsedRealtime()
+        return notification
     }
 
-    private fun removeVPNNotification(context: Context, vpnService: VPNService) {
-        statusObserver?.let { observer -> vpnService.removeObserver(observer) }
-        statusObserver = null
+    private fun removeVPNNotification(context: Context) {
+        statusJob?.cancel()
+        statusJob = null
+        stopFollowingThroughput()
+        lastNotificationText = null
         val notificationManager =
             context.getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
         notificationManager.cancel(notificationID)
@@ -149,6 +270,7 @@ class VPNConnectionService(
 
     companion object {
         private val TAG = VPNConnectionService::class.java.name
+        const val DEFAULT_NOTIFICATION_UPDATE_INTERVAL_MS = 2_000L
         fun vpnStatusToStringID(vpnStatus: VPNService.VPNStatus): Int {
             return when (vpnStatus) {
                 VPNService.VPNStatus.CONNECTED -> R.string.connection_info_state_connected
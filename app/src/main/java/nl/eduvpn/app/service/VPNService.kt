@@ -1,22 +1,128 @@
 package nl.eduvpn.app.service
 
 import android.app.Notification
-import androidx.lifecycle.LiveData
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.flow.stateIn
 import nl.eduvpn.app.livedata.ByteCount
 import nl.eduvpn.app.livedata.IPs
+import nl.eduvpn.app.livedata.PeerDiagnostics
+import nl.eduvpn.app.livedata.Throughput
+import nl.eduvpn.app.utils.ThroughputRateEngine
+import nl.eduvpn.app.utils.TrafficHistory
 import org.eduvpn.common.Protocol
 
-abstract class VPNService : LiveData<VPNService.VPNStatus>() {
+/**
+ * @param statisticsScope The scope the shared statistics flows run in. The services live as long as
+ * the application, and so does this scope.
+ */
+abstract class VPNService @JvmOverloads constructor(
+    private val statisticsScope: CoroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+) {
 
     enum class VPNStatus {
         DISCONNECTED, CONNECTING, CONNECTED, PAUSED, FAILED
     }
 
-    abstract val byteCountFlow: Flow<ByteCount?>
+    /**
+     * A status of the VPN, numbered in the order the statuses were entered.
+     *
+     * @param sequence Increased by one for each change of the status. A collector which sees a larger
+     * step has missed some statuses in between.
+     */
+    data class StatusUpdate(val status: VPNStatus, val sequence: Long)
+
+    private val statusLock = Any()
+    private val _statusFlow = MutableStateFlow(StatusUpdate(VPNStatus.DISCONNECTED, 0))
+
+    /**
+     * The status of the VPN. This is the only path the status takes to its consumers. It is updated
+     * directly from the thread of the backend, and conflated, so a slow collector skips to the latest
+     * status instead of holding up the backend.
+     */
+    val statusFlow: StateFlow<StatusUpdate> = _statusFlow.asStateFlow()
+
+    /**
+     * Publishes a new status. Can be called from any thread. Publishing the current status again is
+     * ignored.
+     */
+    protected fun publishStatus(status: VPNStatus) {
+        synchronized(statusLock) {
+            val current = _statusFlow.value
+            if (current.status != status) {
+                _statusFlow.value = StatusUpdate(status, current.sequence + 1)
+            }
+        }
+    }
+
+    companion object {
+        // Keeps the shared statistics running for a short while without collectors, so a configuration change does not reset them.
+        private const val STATISTICS_STOP_TIMEOUT_MS = 5_000L
+    }
+
+    /**
+     * Creates the flow which samples the byte counts of the backend. It is only collected once, by the
+     * shared byte count flow. Null byte counts mean that there is no connection.
+     */
+    protected abstract fun createByteCountFlow(): Flow<ByteCount?>
+
+    /**
+     * The byte counts of the current connection. All collectors share a single sample per tick, and
+     * nothing is sampled while there are no collectors.
+     */
+    val byteCountFlow: StateFlow<ByteCount?> by lazy {
+        // Lazy, because the subclass has to be initialized before creating the flow.
+        createByteCountFlow().stateIn(
+            statisticsScope,
+            SharingStarted.WhileSubscribed(STATISTICS_STOP_TIMEOUT_MS),
+            null
+        )
+    }
+
+    /**
+     * The traffic of the current session, recorded while the throughput is collected.
+     */
+    val trafficHistory = TrafficHistory()
+
+    /**
+     * The download and upload rates of the current connection, calculated from the byte counts.
+     */
+    val throughputFlow: StateFlow<Throughput> by lazy {
+        val recordedByteCountFlow = byteCountFlow.onEach { byteCount ->
+            if (byteCount == null) {
+                trafficHistory.reset()
+            } else {
+                trafficHistory.addSample(byteCount.timeMillis, byteCount.bytesIn, byteCount.bytesOut)
+            }
+        }
+        ThroughputRateEngine.rates(recordedByteCountFlow).stateIn(
+            statisticsScope,
+            SharingStarted.WhileSubscribed(STATISTICS_STOP_TIMEOUT_MS),
+            Throughput.ZERO
+        )
+    }
 
     abstract val ipFlow: Flow<IPs?>
 
+    /**
+     * The byte counts of the current session, or of the session which has just ended.
+     * Unlike the byte count flow, this does not start sampling the statistics.
+     */
+    open fun lastByteCount(): ByteCount? = byteCountFlow.value
+
+    /**
+     * The diagnostics of the peers of the current connection, updated with each byte count sample.
+     * Empty if the protocol does not have peers.
+     */
+    open val peerDiagnosticsFlow: StateFlow<List<PeerDiagnostics>> = MutableStateFlow(emptyList())
+
     /**
      *  User should call this after showing a notification.
      *
@@ -42,7 +148,7 @@ abstract class VPNService : LiveData<VPNService.VPNStatus>() {
     /**
      * @return The current status of the VPN.
      */
-    abstract fun getStatus(): VPNStatus
+    open fun getStatus(): VPNStatus = statusFlow.value.status
 
     /**
      * Type of the VPN protocol this service implements.
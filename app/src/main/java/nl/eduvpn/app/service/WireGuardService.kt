@@ -3,8 +3,12 @@ package nl.eduvpn.app.service
 import android.app.Activity
 import android.app.Notification
 import android.content.Context
+import android.os.Build
+import android.os.PowerManager
+import android.os.SystemClock
 import com.wireguard.android.backend.BackendException
 import com.wireguard.android.backend.GoBackend
+import com.wireguard.android.backend.Statistics
 import com.wireguard.android.backend.Tunnel
 import com.wireguard.config.Config
 import com.wireguard.config.Interface
@@ -15,14 +19,19 @@ import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
-import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import nl.eduvpn.app.R
 import nl.eduvpn.app.livedata.ByteCount
 import nl.eduvpn.app.livedata.IPs
+import nl.eduvpn.app.livedata.PeerDiagnostics
 import nl.eduvpn.app.livedata.TunnelData
 import nl.eduvpn.app.utils.Log
+import nl.eduvpn.app.utils.MetricsRegistry
+import nl.eduvpn.app.utils.PeerDiagnosticsTracker
+import nl.eduvpn.app.utils.StatisticsPoller
 import nl.eduvpn.app.utils.WireGuardTunnel
 import org.eduvpn.common.Protocol
 import java.lang.reflect.InvocationTargetException
@@ -30,15 +39,13 @@ import java.lang.reflect.Method
 import java.net.Inet4Address
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
-import kotlin.coroutines.resume
-import kotlin.coroutines.suspendCoroutine
 import kotlin.jvm.optionals.getOrNull
 
 /**
  * Service responsible for managing the WireGuard profiles and the connection.
  */
 @OptIn(DelicateCoroutinesApi::class)
-class WireGuardService(private val context: Context, timer: Flow<Unit>): VPNService() {
+class WireGuardService(private val context: Context, ticker: Ticker): VPNService() {
 
     private lateinit var backend : GoBackend
 
@@ -48,18 +55,37 @@ class WireGuardService(private val context: Context, timer: Flow<Unit>): VPNServ
 
     private var errorString: String? = null
 
-    // Stores the current VPN status.
-    private var connectionStatus = VPNStatus.DISCONNECTED
-
     private val TAG = this::class.java.name
 
-    override val byteCountFlow: Flow<ByteCount?> = timer.map {
-        getByteCount()
+    private val powerManager = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+
+    private val setStateUpHistogram = MetricsRegistry.histogram("wireguard.set_state_up_us")
+    private val setStateDownHistogram = MetricsRegistry.histogram("wireguard.set_state_down_us")
+    private val pollHistogram = MetricsRegistry.histogram("wireguard.poll_us")
+
+    val statisticsPoller = StatisticsPoller(
+        sample = { MetricsRegistry.time(pollHistogram) { readByteCount() } },
+        isDeviceIdle = { Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && powerManager.isDeviceIdleMode },
+        intervalGauge = MetricsRegistry.gauge("wireguard.poll_interval_ms"),
+        ticker = ticker
+    )
+
+    // A single producer on the backend thread, which is shared by all collectors of the byte count flow.
+    override fun createByteCountFlow(): Flow<ByteCount?> {
+        return statisticsPoller.samples().flowOn(backendDispatcher)
     }
 
+    private val peerDiagnosticsTracker = PeerDiagnosticsTracker()
+    private val _peerDiagnosticsFlow = MutableStateFlow<List<PeerDiagnostics>>(emptyList())
+    override val peerDiagnosticsFlow: StateFlow<List<PeerDiagnostics>> = _peerDiagnosticsFlow
+
     private val _ipFlow = MutableStateFlow<IPs?>(null)
     override val ipFlow: Flow<IPs?> = _ipFlow
 
+    // The byte counts read just before the tunnel was brought down, because they are gone afterwards.
+    @Volatile
+    private var sessionEndByteCount: ByteCount? = null
+
 
     private val tunnel = WireGuardTunnel("eduVPN WireGuard tunnel") { newTunnelState ->
         setConnectionStatus(tunnelStateToStatus(newTunnelState))
@@ -73,17 +99,12 @@ class WireGuardService(private val context: Context, timer: Flow<Unit>): VPNServ
         }
     }
 
-    override fun getStatus(): VPNStatus {
-        return connectionStatus
-    }
-
     override fun startForeground(id: Int, notification: Notification) {
         // Not necessary for WireGuard
     }
 
     private fun setConnectionStatus(status: VPNStatus) {
-        connectionStatus = status
-        postValue(status)
+        publishStatus(status)
     }
 
     /**
@@ -96,19 +117,48 @@ class WireGuardService(private val context: Context, timer: Flow<Unit>): VPNServ
         }
     }
 
-    private suspend fun getByteCount(): ByteCount? {
-        return suspendCoroutine{ continuation ->
-            GlobalScope.launch(backendDispatcher) {
-                if (!backend.runningTunnelNames.contains(tunnel.name)) {
-                    continuation.resume(null)
-                    return@launch
-                }
-                val statistics = backend.getStatistics(tunnel)
-                val bytesIn = statistics.totalRx()
-                val bytesOut = statistics.totalTx()
-                continuation.resume(ByteCount(bytesIn, bytesOut))
-            }
+    /**
+     * Reads the byte counts of the tunnel. Must be called on the backend dispatcher.
+     */
+    private fun readByteCount(): ByteCount? {
+        // The tunnel state is only changed on the backend dispatcher, so it is up to date here.
+        if (tunnel.state != Tunnel.State.UP) {
+            resetPeerDiagnostics()
+            return null
+        }
+        val statistics = backend.getStatistics(tunnel)
+        val now = SystemClock.elapsedRealtime()
+        updatePeerDiagnostics(statistics, now)
+        return ByteCount(statistics.totalRx(), statistics.totalTx(), now)
+    }
+
+    /**
+     * Forgets the peer diagnostics of the previous session, so they can't be mistaken for the current one.
+     * Must be called on the backend dispatcher.
+     */
+    private fun resetPeerDiagnostics() {
+        peerDiagnosticsTracker.reset()
+        _peerDiagnosticsFlow.value = emptyList()
+    }
+
+    /**
+     * Updates the peer diagnostics from the same statistics as the byte counts.
+     */
+    private fun updatePeerDiagnostics(statistics: Statistics, now: Long) {
+        val wallClock = System.currentTimeMillis()
+        val diagnostics = statistics.peers().mapNotNull { key ->
+            val peer = statistics.peer(key) ?: return@mapNotNull null
+            peerDiagnosticsTracker.addPeer(
+                now,
+                wallClock,
+                key.toBase64(),
+                peer.rxBytes(),
+                peer.txBytes(),
+                peer.latestHandshakeEpochMillis()
+            )
         }
+        peerDiagnosticsTracker.finishSample(diagnostics.map { it.publicKey })
+        _peerDiagnosticsFlow.value = diagnostics
     }
 
     /**
@@ -141,10 +191,14 @@ class WireGuardService(private val context: Context, timer: Flow<Unit>): VPNServ
                 ).build()
         }
         withContext(backendDispatcher) {
+            sessionEndByteCount = null
             setConnectionStatus(VPNStatus.CONNECTING)
             _ipFlow.emit(getIPs(config.`interface`))
+            resetPeerDiagnostics()
             try {
-                backend.setState(tunnel, Tunnel.State.UP, updatedConfig)
+                MetricsRegistry.time(setStateUpHistogram) {
+                    backend.setState(tunnel, Tunnel.State.UP, updatedConfig)
+                }
             } catch (ex: BackendException) {
                 if (ex.reason == BackendException.Reason.VPN_NOT_AUTHORIZED) {
                     withContext(Dispatchers.Main) {
@@ -166,8 +220,17 @@ class WireGuardService(private val context: Context, timer: Flow<Unit>): VPNServ
 
     override fun disconnect() {
         GlobalScope.launch(backendDispatcher) {
+            sessionEndByteCount = try {
+                readByteCount()
+            } catch (ex: Exception) {
+                Log.w(TAG, "Unable to read the statistics before disconnecting.", ex)
+                null
+            }
             try {
-                backend.setState(tunnel, Tunnel.State.DOWN, null)
+                MetricsRegistry.time(setStateDownHistogram) {
+                    backend.setState(tunnel, Tunnel.State.DOWN, null)
+                }
+                resetPeerDiagnostics()
             } catch (ex: Exception) {
                 Log.e(
                     TAG,
@@ -178,6 +241,10 @@ class WireGuardService(private val context: Context, timer: Flow<Unit>): VPNServ
         }
     }
 
+    override fun lastByteCount(): ByteCount? {
+        return sessionEndByteCount ?: byteCountFlow.value
+    }
+
     override fun getErrorString(): String? {
         return errorString
     }
@@ -0,0 +1,77 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+/**
+ * Splits the remaining validity of a certificate into the parts which are shown on screen, and
+ * calculates when the shown text changes next. That way the text is only rendered again when it
+ * actually changes, instead of every second.
+ */
+object CertExpiryCountdown {
+
+    private const val MINUTE = 60L
+    private const val HOUR = 60 * MINUTE
+    private const val DAY = 24 * HOUR
+    private const val MONTH = 30 * DAY
+
+    enum class Kind {
+        EXPIRED,
+        SECONDS,
+        MINUTES_SECONDS,
+        HOURS_MINUTES,
+        DAYS_HOURS,
+        DAYS
+    }
+
+    /**
+     * The text shown on screen. Two equal buckets are shown as the same text.
+     */
+    data class Bucket(val kind: Kind, val first: Int = 0, val second: Int = 0)
+
+    /**
+     * @param remainingSeconds The number of seconds until the certificate expires.
+     * @return The parts to show.
+     */
+    fun bucket(remainingSeconds: Long): Bucket {
+        val r = remainingSeconds
+        return when {
+            r < 0 -> Bucket(Kind.EXPIRED)
+            r < MINUTE -> Bucket(Kind.SECONDS, r.toInt())
+            r < HOUR -> Bucket(Kind.MINUTES_SECONDS, (r / MINUTE).toInt(), (r % MINUTE).toInt())
+            r < DAY -> Bucket(Kind.HOURS_MINUTES, (r / HOUR).toInt(), (r % HOUR / MINUTE).toInt())
+            r < MONTH -> Bucket(Kind.DAYS_HOURS, (r / DAY).toInt(), (r % DAY / HOUR).toInt())
+            else -> Bucket(Kind.DAYS, (r / DAY).toInt())
+        }
+    }
+
+    /**
+     * @param remainingSeconds The number of seconds until the certificate expires.
+     * @return The number of seconds after which the bucket changes, or null if the certificate has
+     * expired and the text does not change anymore.
+     */
+    fun secondsUntilChange(remainingSeconds: Long): Long? {
+        val r = remainingSeconds
+        // The bucket changes when the smallest part shown drops below its current value
+        return when {
+            r < 0 -> null
+            r < HOUR -> 1
+            r < DAY -> r % MINUTE + 1
+            r < MONTH -> r % HOUR + 1
+            else -> r % DAY + 1
+        }
+    }
+}
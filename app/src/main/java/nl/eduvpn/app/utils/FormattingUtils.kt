@@ -21,7 +21,6 @@ import nl.eduvpn.app.Constants
 import nl.eduvpn.app.R
 import nl.eduvpn.app.entity.Instance
 import java.net.URI
-import java.text.DecimalFormat
 import java.util.*
 
 /**
@@ -30,11 +29,35 @@ import java.util.*
  */
 object FormattingUtils {
 
-    private val DECIMAL_FORMAT = DecimalFormat("0.00")
+    @Volatile
+    private var trafficFormatter: TrafficFormatter? = null
 
-    private const val BYTES_IN_A_KB: Long = 1024
-    private const val BYTES_IN_A_MB = BYTES_IN_A_KB * 1024
-    private const val BYTES_IN_A_GB = BYTES_IN_A_MB * 1024
+    /**
+     * Returns the formatter for the current locale. The templates are only read from the resources
+     * again when the locale has changed.
+     */
+    private fun trafficFormatter(context: Context): TrafficFormatter {
+        val locale = Locale.getDefault()
+        trafficFormatter?.let { formatter ->
+            if (formatter.locale == locale) {
+                return formatter
+            }
+        }
+        val formatter = TrafficFormatter(
+            TrafficFormatter.Templates(
+                locale,
+                kilobytes = context.getString(R.string.traffic_kilobytes),
+                megabytes = context.getString(R.string.traffic_megabytes),
+                gigabytes = context.getString(R.string.traffic_gigabytes),
+                withRate = context.getString(R.string.traffic_with_rate),
+                durationMoreThanOneHour = context.getString(R.string.duration_more_than_one_hour),
+                durationLessThanOneHour = context.getString(R.string.duration_less_than_one_hour),
+                notAvailable = context.getString(R.string.not_available)
+            )
+        )
+        trafficFormatter = formatter
+        return formatter
+    }
 
     /**
      * Formats the output which displays that for how long the VPN was connected.
@@ -45,27 +68,7 @@ object FormattingUtils {
      */
     @JvmStatic
     fun formatDurationSeconds(context: Context, seconds: Long?): String {
-        return if (seconds == null) {
-            context.getString(R.string.not_available)
-        } else if (seconds >= 3600) {
-            val hours = seconds / 3600
-            val minutes = seconds / 60 % 60
-            val secondsInMinute = seconds % 60
-            context.getString(
-                R.string.duration_more_than_one_hour,
-                hours,
-                minutes,
-                secondsInMinute
-            )
-        } else {
-            val minutes = seconds / 60 % 60
-            val secondsInMinute = seconds % 60
-            context.getString(
-                R.string.duration_less_than_one_hour,
-                minutes,
-                secondsInMinute
-            )
-        }
+        return trafficFormatter(context).formatDuration(seconds)
     }
 
     /**
@@ -77,21 +80,20 @@ object FormattingUtils {
      */
     @JvmStatic
     fun formatBytesTraffic(context: Context, bytes: Long?): String {
-        return if (bytes == null) {
-            context.getString(R.string.not_available)
-        } else if (bytes < BYTES_IN_A_MB) {
-            val kiloBytes = bytes.toDouble() / BYTES_IN_A_KB
-            val kiloByteString = DECIMAL_FORMAT.format(kiloBytes)
-            context.getString(R.string.traffic_kilobytes, kiloByteString)
-        } else if (bytes < BYTES_IN_A_GB) {
-            val megaBytes = bytes.toDouble() / BYTES_IN_A_MB
-            val megaByteString = DECIMAL_FORMAT.format(megaBytes)
-            context.getString(R.string.traffic_megabytes, megaByteString)
-        } else {
-            val gigaBytes = bytes.toDouble() / BYTES_IN_A_GB
-            val gigaByteString = DECIMAL_FORMAT.format(gigaBytes)
-            context.getString(R.string.traffic_gigabytes, gigaByteString)
-        }
+        return trafficFormatter(context).formatBytes(bytes)
+    }
+
+    /**
+     * Formats the bytes traffic together with the current transfer rate.
+     *
+     * @param context        The application or activity context.
+     * @param bytes          The number of bytes. Use null for the not connected status.
+     * @param bytesPerSecond The current transfer rate.
+     * @return The human readable format.
+     */
+    @JvmStatic
+    fun formatBytesTrafficWithRate(context: Context, bytes: Long?, bytesPerSecond: Long): String {
+        return trafficFormatter(context).formatBytesWithRate(bytes, bytesPerSecond)
     }
 
     /**
@@ -0,0 +1,95 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+import android.app.ActivityManager
+import android.content.Context
+import android.widget.ImageView
+import androidx.annotation.DrawableRes
+import com.squareup.picasso.LruCache
+import com.squareup.picasso.OkHttp3Downloader
+import com.squareup.picasso.Picasso
+import nl.eduvpn.app.R
+import java.io.File
+
+/**
+ * Loads the logos of the servers and organizations.
+ *
+ * Logos are kept in a bounded memory cache, and on disk in an HTTP cache keyed by the logo URI.
+ * They are always decoded at the size of the list icon, so all rows showing the same logo share
+ * one memory cache entry.
+ */
+object LogoLoader {
+
+    private val TAG = LogoLoader::class.java.name
+
+    private const val DIRECTORY_LOGO_CACHE = "logos"
+    private const val DISK_CACHE_SIZE = 8L * 1024 * 1024 // 8 MB
+    private const val MAX_MEMORY_CACHE_SIZE = 4 * 1024 * 1024 // 4 MB
+    // Fraction of the memory class which the memory cache may use at most.
+    private const val MEMORY_CACHE_DIVIDER = 32
+
+    private var targetWidth = 0
+    private var targetHeight = 0
+
+    /**
+     * Sets up the image loader. Call this once when the application starts.
+     *
+     * @param context The application context.
+     */
+    @JvmStatic
+    fun init(context: Context) {
+        val applicationContext = context.applicationContext
+        val activityManager = applicationContext.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+        val memoryCacheSize = minOf(
+            activityManager.memoryClass * 1024 * 1024 / MEMORY_CACHE_DIVIDER,
+            MAX_MEMORY_CACHE_SIZE
+        )
+        targetWidth = applicationContext.resources.getDimensionPixelSize(R.dimen.list_item_icon_width)
+        targetHeight = applicationContext.resources.getDimensionPixelSize(R.dimen.list_item_icon_height)
+        val picasso = Picasso.Builder(applicationContext)
+            .memoryCache(LruCache(memoryCacheSize))
+            .downloader(OkHttp3Downloader(File(applicationContext.cacheDir, DIRECTORY_LOGO_CACHE), DISK_CACHE_SIZE))
+            .build()
+        try {
+            Picasso.setSingletonInstance(picasso)
+        } catch (ex: IllegalStateException) {
+            Log.w(TAG, "Picasso instance was already set up!", ex)
+        }
+    }
+
+    /**
+     * Loads a logo into an image view, or shows the fallback if there is no logo.
+     *
+     * @param logoUri  The URI of the logo. Can be null or empty.
+     * @param target   The view to display the logo in.
+     * @param fallback The drawable to show if there is no logo.
+     */
+    fun load(logoUri: String?, target: ImageView, @DrawableRes fallback: Int) {
+        if (logoUri.isNullOrEmpty()) {
+            Picasso.get().cancelRequest(target)
+            target.setImageResource(fallback)
+            return
+        }
+        Picasso.get()
+            .load(logoUri)
+            .resize(targetWidth, targetHeight)
+            .centerInside()
+            .onlyScaleDown()
+            .into(target)
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * In-process registry of counters, gauges and histograms, used to see what the connection backends
+ * are doing without attaching a debugger.
+ *
+ * Looking up a metric by name takes a map lookup, updating it is lock free. Callers on hot paths
+ * should keep a reference to the metric instead of looking it up each time.
+ */
+object MetricsRegistry {
+
+    /**
+     * Latency bucket bounds in microseconds, from 100 us up to 10 seconds.
+     */
+    @JvmField
+    val LATENCY_BUCKETS_US = longArrayOf(
+        100, 250, 500,
+        1_000, 2_500, 5_000,
+        10_000, 25_000, 50_000,
+        100_000, 250_000, 500_000,
+        1_000_000, 2_500_000, 5_000_000, 10_000_000
+    )
+
+    class Counter internal constructor(val name: String) {
+        private val value = AtomicLong()
+
+        fun increment() {
+            value.incrementAndGet()
+        }
+
+        fun add(delta: Long) {
+            value.addAndGet(delta)
+        }
+
+        fun get(): Long = value.get()
+    }
+
+    class Gauge internal constructor(val name: String) {
+        private val value = AtomicLong()
+
+        fun set(newValue: Long) {
+            value.set(newValue)
+        }
+
+        fun get(): Long = value.get()
+    }
+
+    /**
+     * Counts the recorded values per bucket. The bounds are inclusive upper bounds, values above the
+     * last bound are counted in an overflow bucket.
+     */
+    class Histogram internal constructor(val name: String, private val bounds: LongArray) {
+        private val counts = AtomicLongArray(bounds.size + 1)
+        private val sum = AtomicLong()
+        private val max = AtomicLong()
+
+        fun record(value: Long) {
+            var bucket = 0
+            while (bucket < bounds.size && value > bounds[bucket]) {
+                bucket++
+            }
+            counts.incrementAndGet(bucket)
+            sum.addAndGet(value)
+            var currentMax = max.get()
+            while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get()
+            }
+        }
+
+        fun snapshot(): HistogramSnapshot {
+            val bucketCounts = LongArray(counts.length()) { counts.get(it) }
+            return HistogramSnapshot(name, bounds, bucketCounts, sum.get(), max.get())
+        }
+    }
+
+    /**
+     * A copy of a histogram at one point in time.
+     *
+     * @param bounds The upper bounds of the buckets. The last count is of the overflow bucket.
+     */
+    class HistogramSnapshot(
+        val name: String,
+        val bounds: LongArray,
+        val counts: LongArray,
+        val sum: Long,
+        val max: Long
+    ) {
+        val count: Long = counts.sum()
+
+        val mean: Long get() = if (count == 0L) 0 else sum / count
+
+        /**
+         * @param fraction The fraction of values below the percentile, between 0 and 1.
+         * @return The upper bound of the bucket which contains the percentile.
+         */
+        fun percentile(fraction: Double): Long {
+            if (count == 0L) {
+                return 0
+            }
+            val target = Math.ceil(count * fraction).toLong().coerceAtLeast(1)
+            var seen = 0L
+            for (bucket in counts.indices) {
+                seen += counts[bucket]
+                if (seen >= target) {
+                    return if (bucket < bounds.size) minOf(bounds[bucket], max) else max
+                }
+            }
+            return max
+        }
+    }
+
+    /**
+     * All metrics at one point in time, sorted by name.
+     */
+    class Snapshot(
+        val counters: Map<String, Long>,
+        val gauges: Map<String, Long>,
+        val histograms: List<HistogramSnapshot>
+    )
+
+    private val counters = ConcurrentHashMap<String, Counter>()
+    private val gauges = ConcurrentHashMap<String, Gauge>()
+    private val histograms = ConcurrentHashMap<String, Histogram>()
+
+    @JvmStatic
+    fun counter(name: String): Counter = counters.getOrPut(name) { Counter(name) }
+
+    @JvmStatic
+    fun gauge(name: String): Gauge = gauges.getOrPut(name) { Gauge(name) }
+
+    /**
+     * Returns the histogram with the given name. The bounds are only used when it is created.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun histogram(name: String, bounds: LongArray = LATENCY_BUCKETS_US): Histogram {
+        return histograms.getOrPut(name) { Histogram(name, bounds) }
+    }
+
+    /**
+     * Runs a block, and records how long it took in microseconds.
+     */
+    inline fun <T> time(histogram: Histogram, block: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            histogram.record((System.nanoTime() - start) / 1000)
+        }
+    }
+
+    @JvmStatic
+    fun snapshot(): Snapshot {
+        return Snapshot(
+            counters.mapValues { it.value.get() }.toSortedMap(),
+            gauges.mapValues { it.value.get() }.toSortedMap(),
+            histograms.values.map { it.snapshot() }.sortedBy { it.name }
+        )
+    }
+
+    /**
+     * Removes all the metrics. Only meant for tests.
+     */
+    fun clear() {
+        counters.clear()
+        gauges.clear()
+        histograms.clear()
+    }
+}
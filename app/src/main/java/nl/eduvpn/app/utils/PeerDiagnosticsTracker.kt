@@ -0,0 +1,130 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+import nl.eduvpn.app.livedata.PeerDiagnostics
+
+/**
+ * Derives the health of the WireGuard peers from consecutive statistics samples.
+ *
+ * The timeouts follow the WireGuard protocol: a peer which receives data answers within the keepalive
+ * timeout, and the session keys are rejected after three minutes without a new handshake.
+ * Not thread safe, all samples should be added from the same thread.
+ */
+class PeerDiagnosticsTracker {
+
+    companion object {
+        private val TAG = PeerDiagnosticsTracker::class.java.name
+
+        // Time after which a handshake initiation is retransmitted, plus its maximum jitter
+        private const val REKEY_TIMEOUT_MS = 5_000L
+        private const val REKEY_TIMEOUT_JITTER_MS = 333L
+        // Keepalive timeout (10 seconds) plus rekey timeout (5 seconds)
+        private const val STALL_TIMEOUT_MS = 10_000L + REKEY_TIMEOUT_MS
+        // The session keys are rejected after this time
+        private const val REJECT_AFTER_TIME_MS = 180_000L
+        // WireGuard keeps retrying the first handshake for REKEY_ATTEMPT_TIME (90 seconds), which is too long to
+        // wait for a failover. Give up once this many initiations went unanswered instead.
+        private const val FIRST_HANDSHAKE_ATTEMPTS = 3
+        private const val FIRST_HANDSHAKE_TIMEOUT_MS =
+            FIRST_HANDSHAKE_ATTEMPTS * (REKEY_TIMEOUT_MS + REKEY_TIMEOUT_JITTER_MS)
+    }
+
+    /**
+     * Last known state of a peer. All times are monotonic.
+     */
+    private class PeerState(var rxBytes: Long, var txBytes: Long, now: Long) {
+        // The last time we received data, or when the peer was first seen
+        var lastRxChange = now
+        // The first time we sent data without having received anything since
+        var unansweredSince = -1L
+        var firstSeen = now
+        var stalled = false
+        var handshakeFailing = false
+    }
+
+    private val peers = HashMap<String, PeerState>()
+
+    /**
+     * Adds a sample of one peer. Call [finishSample] after all the peers of a sample were added.
+     *
+     * @param nowMillis                  The monotonic time of the sample.
+     * @param wallClockMillis            The wall clock time of the sample.
+     * @param publicKey                  The public key of the peer.
+     * @param rxBytes                    The bytes received from the peer.
+     * @param txBytes                    The bytes sent to the peer.
+     * @param latestHandshakeEpochMillis The wall clock time of the latest handshake, or zero if there was none.
+     */
+    fun addPeer(
+        nowMillis: Long,
+        wallClockMillis: Long,
+        publicKey: String,
+        rxBytes: Long,
+        txBytes: Long,
+        latestHandshakeEpochMillis: Long
+    ): PeerDiagnostics {
+        var state = peers[publicKey]
+        if (state == null || rxBytes < state.rxBytes || txBytes < state.txBytes) {
+            // New peer, or the counters were reset by a new session
+            state = PeerState(rxBytes, txBytes, nowMillis)
+            peers[publicKey] = state
+        }
+        if (rxBytes > state.rxBytes) {
+            state.lastRxChange = nowMillis
+            state.unansweredSince = -1
+        } else if (txBytes > state.txBytes && state.unansweredSince < 0) {
+            state.unansweredSince = nowMillis
+        }
+        state.rxBytes = rxBytes
+        state.txBytes = txBytes
+
+        val handshakeAge = if (latestHandshakeEpochMillis > 0) {
+            maxOf(0, wallClockMillis - latestHandshakeEpochMillis)
+        } else {
+            null
+        }
+        val waitingForAnswer = state.unansweredSince >= 0
+        val stalled = waitingForAnswer && nowMillis - state.unansweredSince >= STALL_TIMEOUT_MS
+        val handshakeFailing = waitingForAnswer && if (handshakeAge == null) {
+            nowMillis - state.firstSeen >= FIRST_HANDSHAKE_TIMEOUT_MS
+        } else {
+            handshakeAge >= REJECT_AFTER_TIME_MS
+        }
+        if (stalled != state.stalled || handshakeFailing != state.handshakeFailing) {
+            Log.w(
+                TAG, "Peer $publicKey changed to stalled: $stalled, handshake failing: $handshakeFailing, " +
+                        "handshake age: $handshakeAge ms, rx: $rxBytes, tx: $txBytes"
+            )
+            state.stalled = stalled
+            state.handshakeFailing = handshakeFailing
+        }
+        return PeerDiagnostics(publicKey, rxBytes, txBytes, handshakeAge, handshakeFailing, stalled)
+    }
+
+    /**
+     * Forgets the peers which were not part of the last sample.
+     *
+     * @param publicKeys The public keys of the peers in the last sample.
+     */
+    fun finishSample(publicKeys: Collection<String>) {
+        peers.keys.retainAll(publicKeys.toSet())
+    }
+
+    fun reset() {
+        peers.clear()
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+import android.os.SystemClock
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Records how long the different steps of the app startup take.
+ * All times are in milliseconds, measured from the start of Application.onCreate.
+ */
+object StartupTimings {
+
+    private val TAG = StartupTimings::class.java.simpleName
+
+    const val APPLICATION_CREATED = "application_created"
+    const val SECURE_STORE_OPENED = "secure_store_opened"
+    const val MAIN_ACTIVITY_CREATED = "main_activity_created"
+    const val FIRST_FRAME = "first_frame"
+
+    @Volatile
+    private var startTime = SystemClock.elapsedRealtime()
+
+    private val marks = ConcurrentHashMap<String, Long>()
+
+    /**
+     * Call this at the start of Application.onCreate.
+     */
+    @JvmStatic
+    fun start() {
+        startTime = SystemClock.elapsedRealtime()
+        marks.clear()
+    }
+
+    /**
+     * Records that a startup step has finished. Only the first occurrence of each step is kept.
+     *
+     * @param name The name of the step.
+     */
+    @JvmStatic
+    fun mark(name: String) {
+        val elapsed = SystemClock.elapsedRealtime() - startTime
+        if (marks.putIfAbsent(name, elapsed) == null) {
+            Log.i(TAG, "Startup step $name finished after $elapsed ms.")
+        }
+    }
+
+    /**
+     * Records how long a startup step took, independently of when it finished.
+     *
+     * @param name       The name of the step.
+     * @param durationMs The duration of the step.
+     */
+    @JvmStatic
+    fun duration(name: String, durationMs: Long) {
+        if (marks.putIfAbsent("${name}_duration", durationMs) == null) {
+            Log.i(TAG, "Startup step $name took $durationMs ms.")
+        }
+    }
+
+    /**
+     * @return All the recorded steps with their times.
+     */
+    fun snapshot(): Map<String, Long> {
+        return marks.toSortedMap()
+    }
+}
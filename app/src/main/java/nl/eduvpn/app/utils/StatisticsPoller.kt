@@ -0,0 +1,108 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.flow
+import nl.eduvpn.app.livedata.ByteCount
+import nl.eduvpn.app.service.Ticker
+
+/**
+ * Polls the byte counts of a VPN backend which can not push them.
+ *
+ * While the counters keep changing, they are polled at the minimum interval. Each poll without any
+ * traffic doubles the interval, up to the maximum interval, and the first poll with traffic resets it.
+ * While the device is in doze mode, polling is paused.
+ *
+ * @param sample             Reads the current byte counts. Null if there is no connection.
+ * @param isDeviceIdle       Returns true if the device is in doze mode.
+ * @param minIntervalMillis  The interval while there is traffic.
+ * @param maxIntervalMillis  The longest interval while there is no traffic.
+ * @param intervalGauge      Optional gauge which receives the current poll interval.
+ * @param ticker             Optional ticker. If set, polls happen at its ticks, rounded to whole ticks,
+ *                           so they coincide with the other work which runs every second.
+ */
+class StatisticsPoller(
+    private val sample: suspend () -> ByteCount?,
+    private val isDeviceIdle: () -> Boolean,
+    private val minIntervalMillis: Long = DEFAULT_MIN_INTERVAL_MS,
+    private val maxIntervalMillis: Long = DEFAULT_MAX_INTERVAL_MS,
+    private val intervalGauge: MetricsRegistry.Gauge? = null,
+    private val ticker: Ticker? = null
+) {
+
+    companion object {
+        const val DEFAULT_MIN_INTERVAL_MS = 1_000L
+        const val DEFAULT_MAX_INTERVAL_MS = 8_000L
+    }
+
+    private val _pollIntervalMillis = MutableStateFlow(0L)
+
+    private var currentInterval: Long
+        get() = _pollIntervalMillis.value
+        set(value) {
+            _pollIntervalMillis.value = value
+            intervalGauge?.set(value)
+        }
+
+    /**
+     * The current interval between two polls. Zero while polling is paused or not running.
+     */
+    val pollIntervalMillis: StateFlow<Long> = _pollIntervalMillis
+
+    /**
+     * Polls the byte counts for as long as the flow is collected.
+     * Should be shared, so that multiple collectors do not poll separately.
+     */
+    fun samples(): Flow<ByteCount?> = flow {
+        var interval = minIntervalMillis
+        var previous: ByteCount? = null
+        try {
+            while (true) {
+                if (isDeviceIdle()) {
+                    currentInterval = 0
+                    waitFor(maxIntervalMillis)
+                    continue
+                }
+                val current = sample()
+                emit(current)
+                val changed = current?.bytesIn != previous?.bytesIn || current?.bytesOut != previous?.bytesOut
+                interval = if (changed) {
+                    minIntervalMillis
+                } else {
+                    minOf(interval * 2, maxIntervalMillis)
+                }
+                previous = current
+                currentInterval = interval
+                waitFor(interval)
+            }
+        } finally {
+            currentInterval = 0
+        }
+    }
+
+    private suspend fun waitFor(millis: Long) {
+        if (ticker == null) {
+            delay(millis)
+        } else {
+            ticker.delayUntilTick((millis / Ticker.TICK_INTERVAL_MS).coerceAtLeast(1))
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flow
+import nl.eduvpn.app.livedata.ByteCount
+import nl.eduvpn.app.livedata.Throughput
+import kotlin.math.exp
+
+/**
+ * Turns cumulative byte counts into transfer rates.
+ *
+ * The last samples are kept in a fixed window of primitive arrays, so adding a sample does not allocate.
+ * The rate is calculated over the whole window, and the smoothed rate is an exponentially weighted
+ * moving average, which takes the time between the samples into account.
+ *
+ * Not thread safe, all samples should be added from the same thread.
+ *
+ * @param windowSize         The number of samples to calculate the rate over.
+ * @param smoothingTimeMillis The time constant of the moving average.
+ */
+class ThroughputRateEngine(
+    private val windowSize: Int = DEFAULT_WINDOW_SIZE,
+    private val smoothingTimeMillis: Long = DEFAULT_SMOOTHING_TIME_MS
+) {
+
+    companion object {
+        private const val DEFAULT_WINDOW_SIZE = 4
+        private const val DEFAULT_SMOOTHING_TIME_MS = 5_000L
+
+        /**
+         * Calculates the transfer rates of a byte count flow. Each collector gets its own engine.
+         * A null byte count means that there is no connection, and resets the rates to zero.
+         *
+         * @param byteCountFlow The cumulative byte counts.
+         */
+        fun rates(byteCountFlow: Flow<ByteCount?>): Flow<Throughput> = flow {
+            val engine = ThroughputRateEngine()
+            byteCountFlow.collect { byteCount ->
+                if (byteCount == null) {
+                    engine.reset()
+                } else {
+                    engine.addSample(byteCount.timeMillis, byteCount.bytesIn, byteCount.bytesOut)
+                }
+                emit(engine.toThroughput())
+            }
+        }.distinctUntilChanged()
+    }
+
+    init {
+        require(windowSize >= 2) { "The window needs at least two samples." }
+    }
+
+    private val times = LongArray(windowSize)
+    private val bytesIn = LongArray(windowSize)
+    private val bytesOut = LongArray(windowSize)
+
+    // Index of the next slot to write. Once the window is full, this is also the oldest sample.
+    private var next = 0
+    private var count = 0
+
+    private var smoothedDownload = 0.0
+    private var smoothedUpload = 0.0
+
+    /**
+     * The download rate over the window, in bytes per second.
+     */
+    var downloadRate = 0L
+        private set
+
+    /**
+     * The upload rate over the window, in bytes per second.
+     */
+    var uploadRate = 0L
+        private set
+
+    val smoothedDownloadRate: Long get() = smoothedDownload.toLong()
+    val smoothedUploadRate: Long get() = smoothedUpload.toLong()
+
+    /**
+     * Adds a sample of the cumulative byte counts.
+     *
+     * @param timeMillis   The monotonic time of the sample.
+     * @param totalIn      The total number of bytes received.
+     * @param totalOut     The total number of bytes sent.
+     */
+    fun addSample(timeMillis: Long, totalIn: Long, totalOut: Long) {
+        if (count > 0) {
+            val last = (next - 1 + windowSize) % windowSize
+            if (timeMillis <= times[last]) {
+                return
+            }
+            if (totalIn < bytesIn[last] || totalOut < bytesOut[last]) {
+                // The counters were reset, so this is a new connection.
+                reset()
+            } else {
+                val elapsed = timeMillis - times[last]
+                val intervalDownload = (totalIn - bytesIn[last]) * 1000.0 / elapsed
+                val intervalUpload = (totalOut - bytesOut[last]) * 1000.0 / elapsed
+                if (count == 1) {
+                    smoothedDownload = intervalDownload
+                    smoothedUpload = intervalUpload
+                } else {
+                    val alpha = 1.0 - exp(-elapsed.toDouble() / smoothingTimeMillis)
+                    smoothedDownload += alpha * (intervalDownload - smoothedDownload)
+                    smoothedUpload += alpha * (intervalUpload - smoothedUpload)
+                }
+            }
+        }
+        times[next] = timeMillis
+        bytesIn[next] = totalIn
+        bytesOut[next] = totalOut
+        next = (next + 1) % windowSize
+        if (count < windowSize) {
+            count++
+        }
+        if (count > 1) {
+            val oldest = if (count < windowSize) 0 else next
+            val newest = (next - 1 + windowSize) % windowSize
+            val elapsed = times[newest] - times[oldest]
+            downloadRate = (bytesIn[newest] - bytesIn[oldest]) * 1000 / elapsed
+            uploadRate = (bytesOut[newest] - bytesOut[oldest]) * 1000 / elapsed
+        }
+    }
+
+    /**
+     * Forgets all samples, and sets the rates to zero.
+     */
+    fun reset() {
+        next = 0
+        count = 0
+        downloadRate = 0
+        uploadRate = 0
+        smoothedDownload = 0.0
+        smoothedUpload = 0.0
+    }
+
+    fun toThroughput(): Throughput {
+        return Throughput(downloadRate, uploadRate, smoothedDownloadRate, smoothedUploadRate)
+    }
+}
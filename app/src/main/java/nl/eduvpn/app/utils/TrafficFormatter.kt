@@ -0,0 +1,314 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+import java.text.DecimalFormatSymbols
+import java.util.Locale
+
+/**
+ * Formats traffic amounts and durations without allocating, so it can run every second for each
+ * counter on the screen.
+ *
+ * The localized templates are parsed once. Numbers are written digit by digit into a reusable
+ * builder of the calling thread, with the traffic amounts in fixed point with two decimals.
+ * This class does not depend on Android, the templates are read from the resources by the caller.
+ */
+class TrafficFormatter(private val templates: Templates) {
+
+    companion object {
+        private const val BYTES_IN_A_KB: Long = 1024
+        private const val BYTES_IN_A_MB = BYTES_IN_A_KB * 1024
+        private const val BYTES_IN_A_GB = BYTES_IN_A_MB * 1024
+
+        private const val KIND_NUMBER = 0
+        private const val KIND_FIXED_POINT = 1
+        private const val KIND_TEXT = 2
+
+        private const val MAX_ARGUMENTS = 3
+    }
+
+    /**
+     * The localized templates, in the format of Android string resources. Supported are the %s and
+     * %d placeholders, with an optional argument index and zero padding, such as %1$02d.
+     *
+     * @param kilobytes               Template for an amount in kB.
+     * @param megabytes               Template for an amount in MB.
+     * @param gigabytes               Template for an amount in GB.
+     * @param withRate                Template for an amount followed by the transfer rate.
+     * @param durationMoreThanOneHour Template with the hours, minutes and seconds.
+     * @param durationLessThanOneHour Template with the minutes and seconds.
+     * @param notAvailable            Text shown when there is no value.
+     */
+    class Templates(
+        val locale: Locale,
+        kilobytes: String,
+        megabytes: String,
+        gigabytes: String,
+        withRate: String,
+        durationMoreThanOneHour: String,
+        durationLessThanOneHour: String,
+        val notAvailable: String
+    ) {
+        internal val kilobytes = Template.parse(kilobytes)
+        internal val megabytes = Template.parse(megabytes)
+        internal val gigabytes = Template.parse(gigabytes)
+        internal val withRate = Template.parse(withRate)
+        internal val durationMoreThanOneHour = Template.parse(durationMoreThanOneHour)
+        internal val durationLessThanOneHour = Template.parse(durationLessThanOneHour)
+
+        private val symbols = DecimalFormatSymbols.getInstance(locale)
+        internal val zeroDigit = symbols.zeroDigit
+        internal val decimalSeparator = symbols.decimalSeparator
+    }
+
+    /**
+     * A template split into literal parts and placeholders.
+     */
+    internal class Template private constructor(
+        // The literal before each placeholder, and the literal after the last one.
+        private val literals: Array<String>,
+        private val argumentIndices: IntArray,
+        private val minimumDigits: IntArray
+    ) {
+        companion object {
+            fun parse(pattern: String): Template {
+                val literals = ArrayList<String>()
+                val argumentIndices = ArrayList<Int>()
+                val minimumDigits = ArrayList<Int>()
+                val literal = StringBuilder()
+                var nextIndex = 0
+                var i = 0
+                while (i < pattern.length) {
+                    val c = pattern[i]
+                    if (c != '%') {
+                        literal.append(c)
+                        i++
+                        continue
+                    }
+                    if (pattern.getOrNull(i + 1) == '%') {
+                        literal.append('%')
+                        i += 2
+                        continue
+                    }
+                    // %[index$][0width](s|d)
+                    var end = i + 1
+                    while (end < pattern.length && pattern[end] != 's' && pattern[end] != 'd') {
+                        end++
+                    }
+                    require(end < pattern.length) { "Unsupported placeholder in template: $pattern" }
+                    var spec = pattern.substring(i + 1, end)
+                    val dollar = spec.indexOf('$')
+                    val index = if (dollar >= 0) {
+                        spec.substring(0, dollar).toInt() - 1
+                    } else {
+                        nextIndex
+                    }
+                    spec = spec.substring(dollar + 1)
+                    require(index in 0 until MAX_ARGUMENTS) { "Unsupported argument index in template: $pattern" }
+                    literals.add(literal.toString())
+                    literal.setLength(0)
+                    argumentIndices.add(index)
+                    minimumDigits.add(if (spec.startsWith("0")) spec.toInt() else 1)
+                    nextIndex = index + 1
+                    i = end + 1
+                }
+                literals.add(literal.toString())
+                return Template(literals.toTypedArray(), argumentIndices.toIntArray(), minimumDigits.toIntArray())
+            }
+        }
+
+        fun appendTo(output: StringBuilder, arguments: Arguments) {
+            for (part in argumentIndices.indices) {
+                output.append(literals[part])
+                arguments.appendArgument(output, argumentIndices[part], minimumDigits[part])
+            }
+            output.append(literals[literals.size - 1])
+        }
+    }
+
+    /**
+     * The arguments of a template which is being written, reused for every call on the same thread.
+     */
+    internal inner class Arguments {
+        val kinds = IntArray(MAX_ARGUMENTS)
+        val numbers = LongArray(MAX_ARGUMENTS)
+        val texts = Array(MAX_ARGUMENTS) { StringBuilder(32) }
+        val output = StringBuilder(64)
+
+        fun appendArgument(output: StringBuilder, index: Int, minimumDigits: Int) {
+            when (kinds[index]) {
+                KIND_NUMBER -> appendNumber(output, numbers[index], minimumDigits)
+                KIND_FIXED_POINT -> appendFixedPoint(output, numbers[index])
+                else -> output.append(texts[index])
+            }
+        }
+    }
+
+    /**
+     * The locale the templates were read for.
+     */
+    val locale: Locale get() = templates.locale
+
+    private val arguments = object : ThreadLocal<Arguments>() {
+        override fun initialValue() = Arguments()
+    }
+
+    /**
+     * Appends a traffic amount, such as "1,50 MB".
+     *
+     * @param output The builder to append to.
+     * @param bytes  The number of bytes.
+     */
+    fun appendBytes(output: StringBuilder, bytes: Long) {
+        appendBytes(output, bytes, arguments.get()!!)
+    }
+
+    /**
+     * Appends a traffic amount followed by the transfer rate, such as "1,50 MB (12,00 kB/s)".
+     *
+     * @param output         The builder to append to.
+     * @param bytes          The number of bytes.
+     * @param bytesPerSecond The transfer rate.
+     */
+    fun appendBytesWithRate(output: StringBuilder, bytes: Long, bytesPerSecond: Long) {
+        val args = arguments.get()!!
+        val amount = args.texts[0]
+        val rate = args.texts[1]
+        amount.setLength(0)
+        rate.setLength(0)
+        appendBytes(amount, bytes, args)
+        appendBytes(rate, bytesPerSecond, args)
+        args.kinds[0] = KIND_TEXT
+        args.kinds[1] = KIND_TEXT
+        templates.withRate.appendTo(output, args)
+    }
+
+    /**
+     * Appends a duration, such as "01:02:03", or "02:03" when it is less than one hour.
+     *
+     * @param output  The builder to append to.
+     * @param seconds The duration in seconds.
+     */
+    fun appendDuration(output: StringBuilder, seconds: Long) {
+        val args = arguments.get()!!
+        args.kinds.fill(KIND_NUMBER)
+        if (seconds >= 3600) {
+            args.numbers[0] = seconds / 3600
+            args.numbers[1] = seconds / 60 % 60
+            args.numbers[2] = seconds % 60
+            templates.durationMoreThanOneHour.appendTo(output, args)
+        } else {
+            args.numbers[0] = seconds / 60 % 60
+            args.numbers[1] = seconds % 60
+            templates.durationLessThanOneHour.appendTo(output, args)
+        }
+    }
+
+    /**
+     * @param bytes The number of bytes, or null if not available.
+     * @return The traffic amount as a string. Only the returned string is allocated.
+     */
+    fun formatBytes(bytes: Long?): String {
+        if (bytes == null) {
+            return templates.notAvailable
+        }
+        val output = clearedOutput()
+        appendBytes(output, bytes)
+        return output.toString()
+    }
+
+    /**
+     * @param bytes The number of bytes, or null if not available.
+     * @return The traffic amount with the transfer rate as a string. Only the returned string is allocated.
+     */
+    fun formatBytesWithRate(bytes: Long?, bytesPerSecond: Long): String {
+        if (bytes == null) {
+            return templates.notAvailable
+        }
+        val output = clearedOutput()
+        appendBytesWithRate(output, bytes, bytesPerSecond)
+        return output.toString()
+    }
+
+    /**
+     * @param seconds The duration in seconds, or null if not available.
+     * @return The duration as a string. Only the returned string is allocated.
+     */
+    fun formatDuration(seconds: Long?): String {
+        if (seconds == null) {
+            return templates.notAvailable
+        }
+        val output = clearedOutput()
+        appendDuration(output, seconds)
+        return output.toString()
+    }
+
+    private fun clearedOutput(): StringBuilder {
+        val output = arguments.get()!!.output
+        output.setLength(0)
+        return output
+    }
+
+    private fun appendBytes(output: StringBuilder, bytes: Long, args: Arguments) {
+        val unit = when {
+            bytes < BYTES_IN_A_MB -> BYTES_IN_A_KB
+            bytes < BYTES_IN_A_GB -> BYTES_IN_A_MB
+            else -> BYTES_IN_A_GB
+        }
+        val template = when (unit) {
+            BYTES_IN_A_KB -> templates.kilobytes
+            BYTES_IN_A_MB -> templates.megabytes
+            else -> templates.gigabytes
+        }
+        args.kinds[0] = KIND_FIXED_POINT
+        // Hundredths of the unit, rounded half up
+        args.numbers[0] = (bytes * 100 + unit / 2) / unit
+        template.appendTo(output, args)
+    }
+
+    private fun appendFixedPoint(output: StringBuilder, hundredths: Long) {
+        var value = hundredths
+        if (value < 0) {
+            output.append('-')
+            value = -value
+        }
+        appendNumber(output, value / 100, 1)
+        output.append(templates.decimalSeparator)
+        appendNumber(output, value % 100, 2)
+    }
+
+    private fun appendNumber(output: StringBuilder, number: Long, minimumDigits: Int) {
+        var value = number
+        if (value < 0) {
+            output.append('-')
+            value = -value
+        }
+        var digits = 1
+        var divisor = 1L
+        while (value / divisor >= 10) {
+            divisor *= 10
+            digits++
+        }
+        repeat(minimumDigits - digits) {
+            output.append(templates.zeroDigit)
+        }
+        while (divisor > 0) {
+            output.append(templates.zeroDigit + (value / divisor % 10).toInt())
+            divisor /= 10
+        }
+    }
+}
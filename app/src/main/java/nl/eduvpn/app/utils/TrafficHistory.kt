@@ -0,0 +1,178 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+/**
+ * Keeps the traffic history of the current VPN session in a fixed amount of memory.
+ *
+ * Every sample is added to three tiers of ring buffers with increasing bucket sizes: one second
+ * buckets for the last two minutes, ten second buckets for the last fifteen minutes, and one minute
+ * buckets for the last four hours. Older buckets are overwritten, so the memory use does not grow
+ * with the length of the session.
+ */
+class TrafficHistory {
+
+    companion object {
+        const val TIER_SECONDS = 0
+        const val TIER_TEN_SECONDS = 1
+        const val TIER_MINUTES = 2
+
+        private val BUCKET_MILLIS = longArrayOf(1_000L, 10_000L, 60_000L)
+        private val CAPACITY = intArrayOf(120, 90, 240)
+    }
+
+    /**
+     * Ring buffer of the bytes transferred per bucket.
+     */
+    private class Tier(val bucketMillis: Long, val capacity: Int) {
+        val bytesIn = LongArray(capacity)
+        val bytesOut = LongArray(capacity)
+        // The bucket number of the newest bucket, or -1 if the tier is empty.
+        var newestBucket = -1L
+
+        fun add(timeMillis: Long, elapsedMillis: Long, deltaIn: Long, deltaOut: Long) {
+            val bucket = timeMillis / bucketMillis
+            if (newestBucket < 0) {
+                newestBucket = bucket
+            }
+            // Clear the buckets which were skipped, but at most the whole buffer
+            val skipped = minOf(bucket - newestBucket, capacity.toLong()).toInt()
+            for (i in 1..skipped) {
+                val index = ((newestBucket + i) % capacity).toInt()
+                bytesIn[index] = 0
+                bytesOut[index] = 0
+            }
+            if (bucket > newestBucket) {
+                newestBucket = bucket
+            }
+            // Spread the traffic over the buckets the sample covers, so a late sample does not show up as a spike.
+            val firstBucket = maxOf((timeMillis - elapsedMillis) / bucketMillis, newestBucket - capacity + 1)
+            val bucketCount = bucket - firstBucket + 1
+            for (b in firstBucket..bucket) {
+                val index = (b % capacity).toInt()
+                bytesIn[index] += deltaIn / bucketCount
+                bytesOut[index] += deltaOut / bucketCount
+            }
+            val newestIndex = (bucket % capacity).toInt()
+            bytesIn[newestIndex] += deltaIn % bucketCount
+            bytesOut[newestIndex] += deltaOut % bucketCount
+        }
+
+        fun clear() {
+            bytesIn.fill(0)
+            bytesOut.fill(0)
+            newestBucket = -1
+        }
+    }
+
+    private val tiers = Array(BUCKET_MILLIS.size) { Tier(BUCKET_MILLIS[it], CAPACITY[it]) }
+
+    private var sessionStartMillis = -1L
+    private var lastTimeMillis = -1L
+    private var lastTotalIn = 0L
+    private var lastTotalOut = 0L
+
+    /**
+     * Adds a sample of the cumulative byte counts.
+     *
+     * @param timeMillis The monotonic time of the sample.
+     * @param totalIn    The total number of bytes received.
+     * @param totalOut   The total number of bytes sent.
+     */
+    @Synchronized
+    fun addSample(timeMillis: Long, totalIn: Long, totalOut: Long) {
+        if (lastTimeMillis >= 0 && (totalIn < lastTotalIn || totalOut < lastTotalOut)) {
+            // The counters were reset, so this is a new session.
+            resetLocked()
+        }
+        if (lastTimeMillis < 0) {
+            sessionStartMillis = timeMillis
+        } else if (timeMillis > lastTimeMillis) {
+            val elapsed = timeMillis - lastTimeMillis
+            val deltaIn = totalIn - lastTotalIn
+            val deltaOut = totalOut - lastTotalOut
+            tiers.forEach { it.add(timeMillis, elapsed, deltaIn, deltaOut) }
+        } else {
+            return
+        }
+        lastTimeMillis = timeMillis
+        lastTotalIn = totalIn
+        lastTotalOut = totalOut
+    }
+
+    /**
+     * Forgets the history of the session.
+     */
+    @Synchronized
+    fun reset() {
+        resetLocked()
+    }
+
+    private fun resetLocked() {
+        tiers.forEach { it.clear() }
+        sessionStartMillis = -1
+        lastTimeMillis = -1
+        lastTotalIn = 0
+        lastTotalOut = 0
+    }
+
+    /**
+     * @return The finest tier which covers the whole session so far.
+     */
+    @Synchronized
+    fun bestTier(): Int {
+        if (sessionStartMillis < 0) {
+            return TIER_SECONDS
+        }
+        val duration = lastTimeMillis - sessionStartMillis
+        for (tier in tiers.indices) {
+            if (duration < tiers[tier].bucketMillis * tiers[tier].capacity) {
+                return tier
+            }
+        }
+        return tiers.lastIndex
+    }
+
+    /**
+     * Copies the transfer rates of a tier, from old to new, into the given arrays.
+     * If the arrays are smaller than the tier, only the newest buckets are copied.
+     *
+     * @param tier          One of the TIER_ constants.
+     * @param downloadRates Receives the download rates in bytes per second.
+     * @param uploadRates   Receives the upload rates in bytes per second.
+     * @return The number of buckets copied.
+     */
+    @Synchronized
+    fun copyRates(tier: Int, downloadRates: FloatArray, uploadRates: FloatArray): Int {
+        val source = tiers[tier]
+        if (source.newestBucket < 0) {
+            return 0
+        }
+        val sessionBuckets = (source.newestBucket - sessionStartMillis / source.bucketMillis + 1)
+        val count = minOf(downloadRates.size, uploadRates.size).toLong()
+            .coerceAtMost(source.capacity.toLong())
+            .coerceAtMost(sessionBuckets)
+            .toInt()
+        val seconds = source.bucketMillis / 1000f
+        for (i in 0 until count) {
+            val index = ((source.newestBucket - count + 1 + i) % source.capacity).toInt()
+            downloadRates[i] = source.bytesIn[index] / seconds
+            uploadRates[i] = source.bytesOut[index] / seconds
+        }
+        return count
+    }
+}
@@ -30,12 +30,14 @@ class AddServerViewModel @Inject constructor(
     historyService: HistoryService,
     backendService: BackendService,
     vpnConnectionService: VPNConnectionService,
+    connectionTracer: ConnectionTracer,
 ) : BaseConnectionViewModel(
     context,
     backendService,
     historyService,
     preferencesService,
     vpnConnectionService,
+    connectionTracer,
 ) {
 
     val serverUrl = MutableLiveData("")
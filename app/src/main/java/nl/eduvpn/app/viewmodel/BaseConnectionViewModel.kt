@@ -44,6 +44,7 @@ abstract class BaseConnectionViewModel(
     private val historyService: HistoryService,
     private val preferencesService: PreferencesService,
     private val vpnConnectionService: VPNConnectionService,
+    protected val connectionTracer: ConnectionTracer,
 ) : ViewModel() {
 
     sealed class ParentAction {
@@ -62,15 +63,22 @@ abstract class BaseConnectionViewModel(
     fun discoverApi(instance: Instance) {
         // If no discovered API, fetch it first, then initiate the connection for the login
         connectionState.value = ConnectionState.DiscoveringApi
+        connectionTracer.start(instance.baseURI)
         // Discover the API
         viewModelScope.launch(Dispatchers.IO) {
             runCatchingCoroutine {
+                connectionTracer.span(ConnectionTracer.SPAN_AWAIT_SECURE_STORE) {
+                    preferencesService.awaitSecureStore()
+                }
                 preferencesService.setCurrentInstance(instance)
-                backendService.addServer(instance)
+                connectionTracer.span(ConnectionTracer.SPAN_ADD_SERVER) {
+                    backendService.addServer(instance)
+                }
             }.onSuccess {
-                getProfiles(instance, preferTcp = false)
+                fetchProfiles(instance, preferTcp = false)
             }.onFailure { throwable ->
                 Log.e(TAG, "Error while fetching discovered API.", throwable)
+                connectionTracer.finish(ConnectionTracer.OUTCOME_FAILED)
                 connectionState.postValue(ConnectionState.Ready)
                 val errorString = if (throwable is CommonException) {
                     throwable.translatedMessage()
@@ -97,12 +105,21 @@ abstract class BaseConnectionViewModel(
     }
 
     fun getProfiles(instance: Instance, preferTcp: Boolean) {
+        connectionTracer.start(instance.baseURI)
+        fetchProfiles(instance, preferTcp)
+    }
+
+    private fun fetchProfiles(instance: Instance, preferTcp: Boolean) {
         connectionState.postValue(ConnectionState.FetchingProfiles)
         viewModelScope.launch(Dispatchers.IO) {
             try {
+                connectionTracer.span(ConnectionTracer.SPAN_AWAIT_SECURE_STORE) {
+                    preferencesService.awaitSecureStore()
+                }
                 preferencesService.setCurrentInstance(instance)
                 backendService.getConfig(instance, preferTcp = preferTcp)
             } catch (ex: Exception) {
+                connectionTracer.finish(ConnectionTracer.OUTCOME_FAILED)
                 connectionState.postValue(ConnectionState.Ready)
                 val errorString = if (ex is CommonException) {
                     ex.translatedMessage()
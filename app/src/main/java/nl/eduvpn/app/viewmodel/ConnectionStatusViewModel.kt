@@ -29,10 +29,13 @@ import android.text.Spanned
 import androidx.core.text.HtmlCompat
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
-import androidx.lifecycle.asFlow
+import androidx.lifecycle.liveData
 import androidx.lifecycle.viewModelScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.launch
 import nl.eduvpn.app.CertExpiredBroadcastReceiver
 import nl.eduvpn.app.R
@@ -40,6 +43,7 @@ import nl.eduvpn.app.entity.CertExpiryTimes
 import nl.eduvpn.app.entity.Profile
 import nl.eduvpn.app.fragment.ConnectionStatusFragment
 import nl.eduvpn.app.service.*
+import nl.eduvpn.app.utils.CertExpiryCountdown
 import nl.eduvpn.app.utils.Log
 import nl.eduvpn.app.utils.pendingIntentImmutableFlag
 import nl.eduvpn.app.utils.toSingleEvent
@@ -52,20 +56,26 @@ class ConnectionStatusViewModel @Inject constructor(
     private val preferencesService: PreferencesService,
     private val vpnService: VPNService,
     private val historyService: HistoryService,
-    @Named("timer")
-    val timer: LiveData<Unit>,
+    private val ticker: Ticker,
     @Named("connectionTimeLiveData")
     val connectionTimeLiveData: LiveData<Long>,
     private val backendService: BackendService,
     vpnConnectionService: VPNConnectionService,
+    connectionTracer: ConnectionTracer,
 ) : BaseConnectionViewModel(
     context,
     backendService,
     historyService,
     preferencesService,
     vpnConnectionService,
+    connectionTracer,
 ) {
 
+    /**
+     * Emits every second while observed.
+     */
+    val timer: LiveData<Unit> = ticker.asLiveData()
+
     sealed class ParentAction {
         object SessionExpired : ParentAction()
     }
@@ -74,13 +84,56 @@ class ConnectionStatusViewModel @Inject constructor(
 
     val serverName = MutableLiveData<String>()
     val serverSupport = MutableLiveData<String?>()
-    val certValidity = MutableLiveData<Spanned?>()
+
+    // The rendered text of the last cert expiry bucket, which is shown until the bucket changes
+    private var renderedCertExpiryBucket: CertExpiryCountdown.Bucket? = null
+    private var renderedCertValidity: Spanned? = null
+
+    /**
+     * The remaining validity of the certificate. While observed, it is only updated at the moments
+     * the shown text changes.
+     */
+    val certValidity: LiveData<Spanned?> = liveData {
+        val certExpiryTime = certExpiryTimes?.endTime
+        if (certExpiryTime == null) {
+            // No cert or time, nothing to display
+            emit(null)
+            return@liveData
+        }
+        var scheduledTime = 0L
+        while (true) {
+            // Never go back to the previous bucket when the delay ends slightly early
+            val currentTime = maxOf(System.currentTimeMillis() / 1000, scheduledTime)
+            val remainingSeconds = certExpiryTime - currentTime
+            val rendered = renderCertValidity(CertExpiryCountdown.bucket(remainingSeconds))
+            if (latestValue !== rendered) {
+                emit(rendered)
+            }
+            val secondsUntilChange = CertExpiryCountdown.secondsUntilChange(remainingSeconds)
+            if (secondsUntilChange == null) {
+                _connectionParentAction.value = ParentAction.SessionExpired
+                return@liveData
+            }
+            scheduledTime = currentTime + secondsUntilChange
+            ticker.delayUntilTick(secondsUntilChange)
+        }
+    }
     val profileName = MutableLiveData<String>()
 
     val isInDisconnectMode = MutableLiveData(false)
     val serverProfiles = MutableLiveData<List<Profile>>()
-    val byteCountFlow = vpnService.byteCountFlow
+    val trafficFlow = vpnService.byteCountFlow.combine(vpnService.throughputFlow) { byteCount, throughput ->
+        byteCount to throughput
+    }
+    val trafficHistory = vpnService.trafficHistory
     val ipFLow = vpnService.ipFlow
+    val peerWarning = vpnService.peerDiagnosticsFlow.map { peers ->
+        when {
+            peers.any { it.handshakeFailing } -> context.getString(R.string.connection_info_peer_handshake_failing)
+            peers.any { it.stalled } -> context.getString(R.string.connection_info_peer_stalled)
+            else -> null
+        }
+    }.distinctUntilChanged()
     val protocol: Protocol get() = Protocol.entries.firstOrNull {  it.nativeValue == preferencesService.getCurrentProtocol() } ?: Protocol.Unknown
     val canRenew = MutableLiveData(false)
     val vpnStatus = MutableLiveData(VPNService.VPNStatus.DISCONNECTED)
@@ -138,7 +191,7 @@ class ConnectionStatusViewModel @Inject constructor(
         profileName.value = currentServer?.currentProfile?.displayName?.bestTranslation
         serverName.value = currentServer?.getDisplayName()?.bestTranslation
         viewModelScope.launch {
-            vpnService.asFlow().collect { status ->
+            vpnService.statusFlow.collect { (status) ->
                 val previousStatus = vpnStatus.value ?: VPNService.VPNStatus.DISCONNECTED
                 vpnStatus.postValue(status)
                 when (status) {
@@ -225,49 +278,45 @@ class ConnectionStatusViewModel @Inject constructor(
         }
     }
 
-    /**
-     * @return If the cert expiry time should continue to be updated.
-     */
-    fun updateCertExpiry(): Boolean {
-        val currentTime = System.currentTimeMillis() / 1000
-        val certExpiryTime = this.certExpiryTimes?.endTime
-        if (certExpiryTime == null) {
-            // No cert or time, nothing to display
-            certValidity.value = null
-            return false
-        }
-        val timeDifferenceInSeconds = (certExpiryTime - currentTime)
-        if (timeDifferenceInSeconds < 0) {
-            // Cert expired
-            certValidity.value = HtmlCompat.fromHtml(context.getString(R.string.connection_certificate_status_expired), HtmlCompat.FROM_HTML_MODE_COMPACT)
-            _connectionParentAction.value = ParentAction.SessionExpired
-            return false
+    private fun renderCertValidity(bucket: CertExpiryCountdown.Bucket): Spanned {
+        renderedCertValidity?.let { rendered ->
+            if (bucket == renderedCertExpiryBucket) {
+                return rendered
+            }
         }
-        if (timeDifferenceInSeconds < 60) {
-            // Expires within a minute
-            val seconds = context.resources.getQuantityString(R.plurals.certificate_status_seconds, timeDifferenceInSeconds.toInt(), timeDifferenceInSeconds)
-            certValidity.value = HtmlCompat.fromHtml(context.getString(R.string.connection_certificate_status_valid_for_one_part, seconds), HtmlCompat.FROM_HTML_MODE_COMPACT)
-        } else if (timeDifferenceInSeconds < 3600) {
-            // Expires within an hour
-            val seconds = context.resources.getQuantityString(R.plurals.certificate_status_seconds, timeDifferenceInSeconds.rem(60).toInt(), timeDifferenceInSeconds.rem(60).toInt())
-            val minutes = context.resources.getQuantityString(R.plurals.certificate_status_minutes, timeDifferenceInSeconds.div(60).toInt(), timeDifferenceInSeconds.div(60).toInt())
-            certValidity.value = HtmlCompat.fromHtml(context.getString(R.string.connection_certificate_status_valid_for_two_parts, minutes, seconds), HtmlCompat.FROM_HTML_MODE_COMPACT)
-        } else if (timeDifferenceInSeconds < 3600 * 24) {
-            // Expires within a day
-            val hours = context.resources.getQuantityString(R.plurals.certificate_status_hours, timeDifferenceInSeconds.div(3600).toInt(), timeDifferenceInSeconds.div(3600).toInt())
-            val minutes = context.resources.getQuantityString(R.plurals.certificate_status_minutes, timeDifferenceInSeconds.rem(3600).div(60).toInt(), timeDifferenceInSeconds.rem(3600).div(60).toInt())
-            certValidity.value = HtmlCompat.fromHtml(context.getString(R.string.connection_certificate_status_valid_for_two_parts, hours, minutes), HtmlCompat.FROM_HTML_MODE_COMPACT)
-        } else if (timeDifferenceInSeconds < 3600 * 24 * 30) {
-            // Expires within 30 days
-            val days = context.resources.getQuantityString(R.plurals.certificate_status_days, timeDifferenceInSeconds.div(3600 * 24).toInt(), timeDifferenceInSeconds.div(3600 * 24).toInt())
-            val hours = context.resources.getQuantityString(R.plurals.certificate_status_hours, timeDifferenceInSeconds.rem(3600 * 24).div(3600).toInt(), timeDifferenceInSeconds.rem(3600 * 24).div(3600).toInt())
-            certValidity.value = HtmlCompat.fromHtml(context.getString(R.string.connection_certificate_status_valid_for_two_parts, days, hours), HtmlCompat.FROM_HTML_MODE_COMPACT)
-        } else {
-            // More than 30 days
-            val days = context.resources.getQuantityString(R.plurals.certificate_status_days, timeDifferenceInSeconds.div(3600 * 24).toInt(), timeDifferenceInSeconds.div(3600 * 24).toInt())
-            certValidity.value = HtmlCompat.fromHtml(context.getString(R.string.connection_certificate_status_valid_for_one_part, days), HtmlCompat.FROM_HTML_MODE_COMPACT)
+        val resources = context.resources
+        val first = bucket.first
+        val second = bucket.second
+        val html = when (bucket.kind) {
+            CertExpiryCountdown.Kind.EXPIRED -> context.getString(R.string.connection_certificate_status_expired)
+            CertExpiryCountdown.Kind.SECONDS -> context.getString(
+                R.string.connection_certificate_status_valid_for_one_part,
+                resources.getQuantityString(R.plurals.certificate_status_seconds, first, first)
+            )
+            CertExpiryCountdown.Kind.MINUTES_SECONDS -> context.getString(
+                R.string.connection_certificate_status_valid_for_two_parts,
+                resources.getQuantityString(R.plurals.certificate_status_minutes, first, first),
+                resources.getQuantityString(R.plurals.certificate_status_seconds, second, second)
+            )
+            CertExpiryCountdown.Kind.HOURS_MINUTES -> context.getString(
+                R.string.connection_certificate_status_valid_for_two_parts,
+                resources.getQuantityString(R.plurals.certificate_status_hours, first, first),
+                resources.getQuantityString(R.plurals.certificate_status_minutes, second, second)
+            )
+            CertExpiryCountdown.Kind.DAYS_HOURS -> context.getString(
+                R.string.connection_certificate_status_valid_for_two_parts,
+                resources.getQuantityString(R.plurals.certificate_status_days, first, first),
+                resources.getQuantityString(R.plurals.certificate_status_hours, second, second)
+            )
+            CertExpiryCountdown.Kind.DAYS -> context.getString(
+                R.string.connection_certificate_status_valid_for_one_part,
+                resources.getQuantityString(R.plurals.certificate_status_days, first, first)
+            )
         }
-        return true
+        val rendered = HtmlCompat.fromHtml(html, HtmlCompat.FROM_HTML_MODE_COMPACT)
+        renderedCertExpiryBucket = bucket
+        renderedCertValidity = rendered
+        return rendered
     }
 
     fun disconnect(activity: Activity?, retryCount: Int = 0) {
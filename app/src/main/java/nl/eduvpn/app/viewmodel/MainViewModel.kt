@@ -21,10 +21,12 @@ import nl.eduvpn.app.entity.SerializedVpnConfig
 import nl.eduvpn.app.entity.VPNConfig
 import nl.eduvpn.app.entity.exception.CommonException
 import nl.eduvpn.app.service.BackendService
+import nl.eduvpn.app.service.ConnectionTracer
 import nl.eduvpn.app.service.EduVPNOpenVPNService
 import nl.eduvpn.app.service.HistoryService
 import nl.eduvpn.app.service.OrganizationService
 import nl.eduvpn.app.service.PreferencesService
+import nl.eduvpn.app.service.SessionRecorder
 import nl.eduvpn.app.service.VPNConnectionService
 import nl.eduvpn.app.utils.Log
 import nl.eduvpn.app.utils.countryCodeToCountryNameAndFlag
@@ -42,13 +44,16 @@ class MainViewModel @Inject constructor(
     private val backendService: BackendService,
     private val preferencesService: PreferencesService,
     private val eduVpnOpenVpnService: EduVPNOpenVPNService,
-    private val vpnConnectionService: VPNConnectionService
+    private val vpnConnectionService: VPNConnectionService,
+    private val sessionRecorder: SessionRecorder,
+    connectionTracer: ConnectionTracer,
 ) : BaseConnectionViewModel(
     context,
     backendService,
     historyService,
     preferencesService,
-    vpnConnectionService
+    vpnConnectionService,
+    connectionTracer,
 ) {
 
     companion object {
@@ -130,6 +135,7 @@ class MainViewModel @Inject constructor(
         config: SerializedVpnConfig,
         preferTcp: Boolean
     ) {
+        connectionTracer.endSpan(ConnectionTracer.SPAN_DELIVER_CONFIG)
         var protocol = config.protocol
         if (preferTcp && protocol == Protocol.OpenVPN.nativeValue) {
             protocol = Protocol.OpenVPNWithTCP.nativeValue
@@ -148,32 +154,41 @@ class MainViewModel @Inject constructor(
             }
         }
 
+        connectionTracer.beginSpan(ConnectionTracer.SPAN_PARSE_CONFIG)
         val parsedConfig = if (protocol == Protocol.OpenVPN.nativeValue || protocol == Protocol.OpenVPNWithTCP.nativeValue) {
             eduVpnOpenVpnService.importConfig(
                 config.config,
                 null,
             )?.let {
                 VPNConfig.OpenVPN(it)
-            } ?: throw IllegalArgumentException("Unable to parse profile")
+            } ?: run {
+                connectionTracer.finish(ConnectionTracer.OUTCOME_FAILED)
+                throw IllegalArgumentException("Unable to parse profile")
+            }
         } else if (protocol == Protocol.WireGuard.nativeValue || protocol == Protocol.WireGuardWithTCP.nativeValue) {
             try {
                 VPNConfig.WireGuard(Config.parse(BufferedReader(StringReader(config.config))))
             } catch (ex: BadConfigException) {
                 // Notify the user that the config is not valid
                 Log.e(TAG, "Unable to parse WireGuard config", ex)
+                connectionTracer.finish(ConnectionTracer.OUTCOME_FAILED)
                 _mainParentAction.postValue(MainParentAction.ShowError(ex))
                 return
             }
         } else {
+            connectionTracer.finish(ConnectionTracer.OUTCOME_FAILED)
             throw IllegalArgumentException("Unexpected protocol type: $protocol")
         }
+        connectionTracer.endSpan(ConnectionTracer.SPAN_PARSE_CONFIG)
         val service = vpnConnectionService.connectionToConfig(viewModelScope, activity, parsedConfig, preferTcp)
         if (protocol == Protocol.WireGuard.nativeValue && !preferTcp && config.shouldFailover) {
             viewModelScope.launch(Dispatchers.IO) {
                 try {
                     // Waits a bit so that the network interface has been surely set up
                     delay(1_000L)
+                    sessionRecorder.onFailOverStarted()
                     backendService.startFailOver(service) {
+                        sessionRecorder.onFailOverNeeded()
                         _failoverResult.postValue(true)
                     }
                 } catch (ex: CommonException) {
@@ -34,6 +34,7 @@ import nl.eduvpn.app.entity.Instance
 import nl.eduvpn.app.entity.OrganizationList
 import nl.eduvpn.app.entity.ServerList
 import nl.eduvpn.app.service.BackendService
+import nl.eduvpn.app.service.ConnectionTracer
 import nl.eduvpn.app.service.HistoryService
 import nl.eduvpn.app.service.OrganizationService
 import nl.eduvpn.app.service.PreferencesService
@@ -47,12 +48,14 @@ class OrganizationSelectionViewModel @Inject constructor(
     backendService: BackendService,
     historyService: HistoryService,
     vpnConnectionService: VPNConnectionService,
+    connectionTracer: ConnectionTracer,
 ) : BaseConnectionViewModel(
     context,
     backendService,
     historyService,
     preferencesService,
     vpnConnectionService,
+    connectionTracer,
 ) {
 
     val artworkVisible = MutableLiveData(true)
@@ -28,10 +28,12 @@ class ProfileSelectionViewModel @Inject constructor(
     preferencesService: PreferencesService,
     backendService: BackendService,
     vpnConnectionService: VPNConnectionService,
+    connectionTracer: ConnectionTracer,
 ) : BaseConnectionViewModel(
     context,
     backendService,
     historyService,
     preferencesService,
     vpnConnectionService,
+    connectionTracer,
 )
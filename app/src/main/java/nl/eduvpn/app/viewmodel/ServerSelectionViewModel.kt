@@ -30,6 +30,7 @@ import nl.eduvpn.app.entity.AuthorizationType
 import nl.eduvpn.app.entity.Instance
 import nl.eduvpn.app.entity.ServerList
 import nl.eduvpn.app.service.BackendService
+import nl.eduvpn.app.service.ConnectionTracer
 import nl.eduvpn.app.service.EduVPNOpenVPNService
 import nl.eduvpn.app.service.HistoryService
 import nl.eduvpn.app.service.OrganizationService
@@ -47,12 +48,14 @@ class ServerSelectionViewModel @Inject constructor(
     private val organizationService: OrganizationService,
     preferencesService: PreferencesService,
     vpnConnectionService: VPNConnectionService,
+    connectionTracer: ConnectionTracer,
 ) : BaseConnectionViewModel(
     context,
     backendService,
     historyService,
     preferencesService,
     vpnConnectionService,
+    connectionTracer,
 ), Listener {
 
     val adapterItems = MutableLiveData<List<OrganizationAdapter.OrganizationAdapterItem>>()
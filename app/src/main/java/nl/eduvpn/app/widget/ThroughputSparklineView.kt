@@ -0,0 +1,106 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.widget
+
+import android.content.Context
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Path
+import android.util.AttributeSet
+import android.view.View
+import androidx.core.content.ContextCompat
+import nl.eduvpn.app.R
+import nl.eduvpn.app.utils.TrafficHistory
+
+/**
+ * Draws the download and upload rates of the current session as two lines.
+ * The buffers are allocated once, so updating the graph every second does not allocate.
+ */
+class ThroughputSparklineView @JvmOverloads constructor(
+    context: Context,
+    attrs: AttributeSet? = null,
+    defStyleAttr: Int = 0
+) : View(context, attrs, defStyleAttr) {
+
+    companion object {
+        // The largest tier of the traffic history has this many buckets.
+        private const val MAX_POINTS = 240
+    }
+
+    private val downloadRates = FloatArray(MAX_POINTS)
+    private val uploadRates = FloatArray(MAX_POINTS)
+    private var pointCount = 0
+
+    private val downloadPath = Path()
+    private val uploadPath = Path()
+
+    private val downloadPaint = createPaint(R.color.colorPrimary)
+    private val uploadPaint = createPaint(R.color.buttonBackgroundColor)
+
+    private fun createPaint(colorResource: Int): Paint {
+        return Paint(Paint.ANTI_ALIAS_FLAG).apply {
+            style = Paint.Style.STROKE
+            strokeWidth = resources.displayMetrics.density * 1.5f
+            strokeJoin = Paint.Join.ROUND
+            color = ContextCompat.getColor(context, colorResource)
+        }
+    }
+
+    /**
+     * Copies the latest rates out of the history, and redraws the graph.
+     *
+     * @param history The traffic history of the current session.
+     */
+    fun update(history: TrafficHistory) {
+        pointCount = history.copyRates(history.bestTier(), downloadRates, uploadRates)
+        invalidate()
+    }
+
+    override fun onDraw(canvas: Canvas) {
+        super.onDraw(canvas)
+        if (pointCount < 2) {
+            return
+        }
+        var max = 1f
+        for (i in 0 until pointCount) {
+            max = maxOf(max, downloadRates[i], uploadRates[i])
+        }
+        buildPath(downloadPath, downloadRates, max)
+        buildPath(uploadPath, uploadRates, max)
+        canvas.drawPath(downloadPath, downloadPaint)
+        canvas.drawPath(uploadPath, uploadPaint)
+    }
+
+    private fun buildPath(path: Path, rates: FloatArray, max: Float) {
+        val inset = downloadPaint.strokeWidth
+        val width = width - paddingLeft - paddingRight - 2 * inset
+        val height = height - paddingTop - paddingBottom - 2 * inset
+        val left = paddingLeft + inset
+        val bottom = paddingTop + inset + height
+        val step = width / (pointCount - 1)
+        path.rewind()
+        for (i in 0 until pointCount) {
+            val x = left + i * step
+            val y = bottom - rates[i] / max * height
+            if (i == 0) {
+                path.moveTo(x, y)
+            } else {
+                path.lineTo(x, y)
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert
+import org.junit.Test
+
+/**
+ * Tests that the ticker ticks at whole seconds, and only while it has subscriptions.
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class TickerTest {
+
+    @Test
+    fun testTicksAreAlignedToWholeSeconds() = runTest {
+        // Start in the middle of a second
+        advanceTimeBy(1_400)
+        val ticker = Ticker(backgroundScope) { testScheduler.currentTime }
+        val ticks = ArrayList<Long>()
+        val subscription = ticker.subscribe { ticks.add(it) }
+        advanceTimeBy(3_000)
+        runCurrent()
+        Assert.assertEquals(listOf(2_000L, 3_000L, 4_000L), ticks)
+        subscription.cancel()
+    }
+
+    @Test
+    fun testTickerStopsWithoutSubscriptions() = runTest {
+        val ticker = Ticker(backgroundScope) { testScheduler.currentTime }
+        var first = 0
+        var second = 0
+        val firstSubscription = ticker.subscribe { first++ }
+        val secondSubscription = ticker.subscribe { second++ }
+        advanceTimeBy(2_000)
+        runCurrent()
+        firstSubscription.cancel()
+        advanceTimeBy(2_000)
+        runCurrent()
+        Assert.assertEquals(2, first)
+        Assert.assertEquals(4, second)
+        secondSubscription.cancel()
+        runCurrent()
+        // The last subscription cancelled the tick loop
+        Assert.assertTrue(backgroundScope.coroutineContext[Job]!!.children.none())
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import android.app.Notification
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import nl.eduvpn.app.livedata.ByteCount
+import nl.eduvpn.app.livedata.IPs
+import nl.eduvpn.app.utils.StatisticsPoller
+import org.eduvpn.common.Protocol
+import org.junit.Assert
+import org.junit.Test
+
+/**
+ * Tests that the statistics of a VPN service are shared between all their collectors.
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class VPNServiceStatisticsTest {
+
+    /**
+     * VPN service which counts how often its backend statistics are read.
+     */
+    private class FakeVPNService(scope: CoroutineScope, private val testScope: TestScope) : VPNService(scope) {
+
+        var statisticsCalls = 0
+
+        override fun createByteCountFlow(): Flow<ByteCount?> {
+            return StatisticsPoller(
+                sample = {
+                    statisticsCalls++
+                    // Keep the traffic changing, so the poller does not back off
+                    ByteCount(statisticsCalls * 1000L, statisticsCalls * 100L, testScope.testScheduler.currentTime)
+                },
+                isDeviceIdle = { false }
+            ).samples()
+        }
+
+        override val ipFlow: Flow<IPs?> = MutableStateFlow(null)
+        override fun startForeground(id: Int, notification: Notification) = Unit
+        override fun disconnect() = Unit
+        override fun getErrorString(): String? = null
+        override fun getStatus(): VPNStatus = VPNStatus.CONNECTED
+        override fun getProtocol(): Protocol = Protocol.WireGuard
+    }
+
+    @Test
+    fun testOneStatisticsCallPerTick() = runTest {
+        val service = FakeVPNService(backgroundScope, this)
+        // The status screen, the notification, failover and the throughput all collect at the same time
+        repeat(3) {
+            backgroundScope.launch { service.byteCountFlow.collect { } }
+        }
+        backgroundScope.launch { service.throughputFlow.collect { } }
+        runCurrent()
+        Assert.assertEquals(1, service.statisticsCalls)
+        advanceTimeBy(10 * StatisticsPoller.DEFAULT_MIN_INTERVAL_MS)
+        runCurrent()
+        Assert.assertEquals(11, service.statisticsCalls)
+    }
+
+    @Test
+    fun testNoStatisticsCallsWithoutCollectors() = runTest {
+        val service = FakeVPNService(backgroundScope, this)
+        val collector = backgroundScope.launch { service.byteCountFlow.collect { } }
+        runCurrent()
+        collector.cancel()
+        // Wait until the shared flow has stopped
+        advanceTimeBy(60_000)
+        val callsAfterStop = service.statisticsCalls
+        advanceTimeBy(60_000)
+        Assert.assertEquals(callsAfterStop, service.statisticsCalls)
+    }
+}
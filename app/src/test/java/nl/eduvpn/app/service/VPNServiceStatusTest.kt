@@ -0,0 +1,76 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service
+
+import android.app.Notification
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.emptyFlow
+import nl.eduvpn.app.livedata.ByteCount
+import nl.eduvpn.app.livedata.IPs
+import org.eduvpn.common.Protocol
+import org.junit.Assert
+import org.junit.Test
+import kotlin.concurrent.thread
+
+/**
+ * Tests that the status updates of a VPN service are numbered in order.
+ */
+class VPNServiceStatusTest {
+
+    private class FakeVPNService : VPNService() {
+        fun setStatus(status: VPNStatus) = publishStatus(status)
+
+        override fun createByteCountFlow(): Flow<ByteCount?> = emptyFlow()
+        override val ipFlow: Flow<IPs?> = MutableStateFlow(null)
+        override fun startForeground(id: Int, notification: Notification) = Unit
+        override fun disconnect() = Unit
+        override fun getErrorString(): String? = null
+        override fun getProtocol(): Protocol = Protocol.WireGuard
+    }
+
+    @Test
+    fun testRepeatedStatusIsIgnored() {
+        val service = FakeVPNService()
+        Assert.assertEquals(VPNService.StatusUpdate(VPNService.VPNStatus.DISCONNECTED, 0), service.statusFlow.value)
+        service.setStatus(VPNService.VPNStatus.CONNECTING)
+        service.setStatus(VPNService.VPNStatus.CONNECTING)
+        service.setStatus(VPNService.VPNStatus.CONNECTED)
+        Assert.assertEquals(VPNService.StatusUpdate(VPNService.VPNStatus.CONNECTED, 2), service.statusFlow.value)
+        Assert.assertEquals(VPNService.VPNStatus.CONNECTED, service.getStatus())
+    }
+
+    @Test
+    fun testConcurrentUpdatesAreNumberedOnce() {
+        val service = FakeVPNService()
+        val transitions = 10_000
+        // Two backend threads which alternate between two statuses each
+        val threads = listOf(
+            VPNService.VPNStatus.CONNECTING to VPNService.VPNStatus.CONNECTED,
+            VPNService.VPNStatus.PAUSED to VPNService.VPNStatus.FAILED
+        ).map { (first, second) ->
+            thread {
+                repeat(transitions) { i ->
+                    service.setStatus(if (i % 2 == 0) first else second)
+                }
+            }
+        }
+        threads.forEach { it.join() }
+        // The statuses of the two threads never overlap, so every call is a change, which got its own number
+        Assert.assertEquals(2L * transitions, service.statusFlow.value.sequence)
+    }
+}
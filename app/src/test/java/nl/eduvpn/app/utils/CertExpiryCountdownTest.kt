@@ -0,0 +1,57 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+import org.junit.Assert
+import org.junit.Test
+
+/**
+ * Tests that the cert expiry countdown is updated exactly when the shown text changes.
+ */
+class CertExpiryCountdownTest {
+
+    private fun assertChangesExactlyAt(remainingSeconds: Long) {
+        val bucket = CertExpiryCountdown.bucket(remainingSeconds)
+        val secondsUntilChange = CertExpiryCountdown.secondsUntilChange(remainingSeconds)!!
+        // Checking the last second before the change is enough, the parts only count down
+        Assert.assertEquals("At $remainingSeconds", bucket, CertExpiryCountdown.bucket(remainingSeconds - secondsUntilChange + 1))
+        Assert.assertNotEquals("At $remainingSeconds", bucket, CertExpiryCountdown.bucket(remainingSeconds - secondsUntilChange))
+    }
+
+    @Test
+    fun testBuckets() {
+        Assert.assertEquals(CertExpiryCountdown.Bucket(CertExpiryCountdown.Kind.EXPIRED), CertExpiryCountdown.bucket(-1))
+        Assert.assertEquals(CertExpiryCountdown.Bucket(CertExpiryCountdown.Kind.SECONDS, 59), CertExpiryCountdown.bucket(59))
+        Assert.assertEquals(CertExpiryCountdown.Bucket(CertExpiryCountdown.Kind.MINUTES_SECONDS, 1, 5), CertExpiryCountdown.bucket(65))
+        Assert.assertEquals(CertExpiryCountdown.Bucket(CertExpiryCountdown.Kind.HOURS_MINUTES, 2, 1), CertExpiryCountdown.bucket(2 * 3600 + 61))
+        Assert.assertEquals(CertExpiryCountdown.Bucket(CertExpiryCountdown.Kind.DAYS_HOURS, 3, 4), CertExpiryCountdown.bucket(3 * 86400 + 4 * 3600 + 7))
+        Assert.assertEquals(CertExpiryCountdown.Bucket(CertExpiryCountdown.Kind.DAYS, 45), CertExpiryCountdown.bucket(45 * 86400 + 1))
+        Assert.assertNull(CertExpiryCountdown.secondsUntilChange(-1))
+    }
+
+    @Test
+    fun testNextChange() {
+        for (remaining in 0L until 2 * 86400) {
+            assertChangesExactlyAt(remaining)
+        }
+        for (remaining in 29 * 86400L until 31 * 86400 step 7) {
+            assertChangesExactlyAt(remaining)
+        }
+        // Days only: a few hours instead of every second
+        Assert.assertEquals(3 * 3600L + 1, CertExpiryCountdown.secondsUntilChange(60 * 86400L + 3 * 3600))
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+import nl.eduvpn.app.livedata.PeerDiagnostics
+import org.junit.Assert
+import org.junit.Test
+
+/**
+ * Tests that the peer diagnostics tracker detects stalled peers and failing handshakes at the protocol timeouts.
+ */
+class PeerDiagnosticsTrackerTest {
+
+    companion object {
+        private const val PEER = "peer"
+        private const val WALL_CLOCK_START = 1_600_000_000_000L
+    }
+
+    private val tracker = PeerDiagnosticsTracker()
+
+    /**
+     * Adds a sample of [PEER] at the monotonic time [now], the wall clock moves along with it.
+     *
+     * @param handshakeAgo The time since the latest handshake, or null if there was none.
+     */
+    private fun sample(now: Long, rx: Long, tx: Long, handshakeAgo: Long? = 1_000): PeerDiagnostics {
+        val wallClock = WALL_CLOCK_START + now
+        val handshake = if (handshakeAgo == null) 0 else wallClock - handshakeAgo
+        val diagnostics = tracker.addPeer(now, wallClock, PEER, rx, tx, handshake)
+        tracker.finishSample(listOf(PEER))
+        return diagnostics
+    }
+
+    @Test
+    fun testHandshakeAge() {
+        sample(0, rx = 100, tx = 100)
+        // Traffic in both directions, an old handshake does not count as failing
+        var diagnostics = sample(1_000, rx = 200, tx = 200, handshakeAgo = 200_000)
+        Assert.assertEquals(200_000L, diagnostics.handshakeAgeMillis)
+        Assert.assertFalse(diagnostics.handshakeFailing)
+        // Only sending from now on
+        diagnostics = sample(2_000, rx = 200, tx = 300, handshakeAgo = 179_999)
+        Assert.assertFalse(diagnostics.handshakeFailing)
+        diagnostics = sample(3_000, rx = 200, tx = 400, handshakeAgo = 180_000)
+        Assert.assertTrue(diagnostics.handshakeFailing)
+        // A handshake from the future is clamped to zero
+        diagnostics = sample(4_000, rx = 200, tx = 500, handshakeAgo = -5_000)
+        Assert.assertEquals(0L, diagnostics.handshakeAgeMillis)
+        Assert.assertFalse(diagnostics.handshakeFailing)
+    }
+
+    @Test
+    fun testFirstHandshakeTimeout() {
+        var diagnostics = sample(0, rx = 0, tx = 0, handshakeAgo = null)
+        Assert.assertNull(diagnostics.handshakeAgeMillis)
+        diagnostics = sample(1_000, rx = 0, tx = 148, handshakeAgo = null)
+        Assert.assertFalse(diagnostics.handshakeFailing)
+        // Three initiations of 5 seconds plus the maximum jitter, counted from when the peer was first seen
+        diagnostics = sample(15_998, rx = 0, tx = 296, handshakeAgo = null)
+        Assert.assertFalse(diagnostics.handshakeFailing)
+        diagnostics = sample(15_999, rx = 0, tx = 296, handshakeAgo = null)
+        Assert.assertTrue(diagnostics.handshakeFailing)
+        // The handshake completed
+        diagnostics = sample(17_000, rx = 92, tx = 296, handshakeAgo = 500)
+        Assert.assertFalse(diagnostics.handshakeFailing)
+    }
+
+    @Test
+    fun testStalledReceiveWithMovingTransmit() {
+        sample(0, rx = 100, tx = 100)
+        // The timeout starts at the first unanswered send, not at the last received data
+        Assert.assertFalse(sample(1_000, rx = 100, tx = 200).stalled)
+        Assert.assertFalse(sample(15_999, rx = 100, tx = 300).stalled)
+        Assert.assertTrue(sample(16_000, rx = 100, tx = 400).stalled)
+        Assert.assertTrue(sample(20_000, rx = 100, tx = 400).stalled)
+        // Receiving anything clears it
+        Assert.assertFalse(sample(21_000, rx = 150, tx = 500).stalled)
+        // And the timeout starts over
+        Assert.assertFalse(sample(22_000, rx = 150, tx = 600).stalled)
+        Assert.assertFalse(sample(36_999, rx = 150, tx = 600).stalled)
+        Assert.assertTrue(sample(37_000, rx = 150, tx = 600).stalled)
+    }
+
+    @Test
+    fun testIdleIsNotStalled() {
+        sample(0, rx = 100, tx = 100)
+        val diagnostics = sample(60_000, rx = 100, tx = 100)
+        Assert.assertFalse(diagnostics.stalled)
+        Assert.assertFalse(diagnostics.handshakeFailing)
+    }
+
+    @Test
+    fun testResetOnTunnelDown() {
+        sample(0, rx = 100, tx = 100)
+        sample(1_000, rx = 100, tx = 200)
+        Assert.assertTrue(sample(16_000, rx = 100, tx = 300).stalled)
+        tracker.reset()
+        // The tunnel came up again with the same counters, nothing was sent since
+        Assert.assertFalse(sample(17_000, rx = 100, tx = 300).stalled)
+        Assert.assertFalse(sample(18_000, rx = 100, tx = 400).stalled)
+        Assert.assertTrue(sample(33_000, rx = 100, tx = 400).stalled)
+    }
+
+    @Test
+    fun testResetOnNewSession() {
+        sample(0, rx = 100, tx = 100, handshakeAgo = null)
+        sample(1_000, rx = 100, tx = 200, handshakeAgo = null)
+        var diagnostics = sample(16_000, rx = 100, tx = 300, handshakeAgo = null)
+        Assert.assertTrue(diagnostics.stalled)
+        Assert.assertTrue(diagnostics.handshakeFailing)
+        // The counters went down, so this is a new session of the tunnel
+        diagnostics = sample(17_000, rx = 0, tx = 0, handshakeAgo = null)
+        Assert.assertFalse(diagnostics.stalled)
+        Assert.assertFalse(diagnostics.handshakeFailing)
+        // The first handshake timeout counts from the start of the new session
+        Assert.assertFalse(sample(18_000, rx = 0, tx = 148, handshakeAgo = null).handshakeFailing)
+        Assert.assertFalse(sample(32_998, rx = 0, tx = 148, handshakeAgo = null).handshakeFailing)
+        Assert.assertTrue(sample(32_999, rx = 0, tx = 148, handshakeAgo = null).handshakeFailing)
+    }
+
+    @Test
+    fun testRemovedPeerStartsOver() {
+        sample(0, rx = 100, tx = 100)
+        sample(1_000, rx = 100, tx = 200)
+        tracker.finishSample(emptyList())
+        // The peer was not part of the last sample, so it is treated as new
+        Assert.assertFalse(sample(16_000, rx = 100, tx = 300).stalled)
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils
+
+import org.junit.Assert
+import org.junit.Assume
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.text.DecimalFormat
+import java.text.DecimalFormatSymbols
+import java.util.Locale
+
+/**
+ * Tests that the traffic formatter gives the same output as the string resources, without allocating.
+ */
+class TrafficFormatterTest {
+
+    companion object {
+        private const val ITERATIONS = 10_000
+        // Measuring the allocations allocates a little by itself
+        private const val ALLOWED_BYTES = 4 * 1024L
+    }
+
+    private fun templates(locale: Locale) = TrafficFormatter.Templates(
+        locale,
+        kilobytes = "%s kB",
+        megabytes = "%s MB",
+        gigabytes = "%s GB",
+        withRate = "%1\$s (%2\$s/s)",
+        durationMoreThanOneHour = "%1\$02d:%2\$02d:%3\$02d",
+        durationLessThanOneHour = "%1\$02d:%2\$02d",
+        notAvailable = "n/a"
+    )
+
+    @Test
+    fun testOutputMatchesStringFormat() {
+        val locale = Locale("nl", "NL")
+        val formatter = TrafficFormatter(templates(locale))
+        val decimalFormat = DecimalFormat("0.00", DecimalFormatSymbols.getInstance(locale))
+        Assert.assertEquals("0,00 kB", formatter.formatBytes(0))
+        Assert.assertEquals(decimalFormat.format(1536 / 1024.0) + " kB", formatter.formatBytes(1536))
+        Assert.assertEquals(decimalFormat.format(5_000_000 / 1048576.0) + " MB", formatter.formatBytes(5_000_000))
+        Assert.assertEquals(decimalFormat.format(3_000_000_000 / 1073741824.0) + " GB", formatter.formatBytes(3_000_000_000))
+        Assert.assertEquals("1,00 MB (2,00 kB/s)", formatter.formatBytesWithRate(1048576, 2048))
+        Assert.assertEquals(String.format(locale, "%1\$02d:%2\$02d", 2, 3), formatter.formatDuration(123))
+        Assert.assertEquals(String.format(locale, "%1\$02d:%2\$02d:%3\$02d", 25, 0, 7), formatter.formatDuration(90_007))
+        Assert.assertEquals("n/a", formatter.formatBytes(null))
+    }
+
+    @Test
+    fun testAppendDoesNotAllocate() {
+        val threadBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+        Assume.assumeTrue(threadBean != null && threadBean.isThreadAllocatedMemorySupported)
+        threadBean!!.isThreadAllocatedMemoryEnabled = true
+        val threadId = Thread.currentThread().id
+        val formatter = TrafficFormatter(templates(Locale.US))
+        val output = StringBuilder(256)
+        fun formatAll(i: Int) {
+            output.setLength(0)
+            formatter.appendBytesWithRate(output, i * 1_000_003L, i * 97L)
+            formatter.appendBytesWithRate(output, i * 7_000_001L, i * 13L)
+            formatter.appendDuration(output, i.toLong())
+        }
+        // Warm up, so the thread local builders are created and the code is compiled
+        for (i in 0 until ITERATIONS) {
+            formatAll(i)
+        }
+        val before = threadBean.getThreadAllocatedBytes(threadId)
+        for (i in 0 until ITERATIONS) {
+            formatAll(i)
+        }
+        val allocated = threadBean.getThreadAllocatedBytes(threadId) - before
+        Assert.assertTrue("Allocated $allocated bytes", allocated < ALLOWED_BYTES)
+    }
+}